@@ -0,0 +1,33 @@
+package com.lycoris.config;
+
+import com.lycoris.service.MarkerChangeEvents;
+import com.lycoris.service.MarkerDatasetVersion;
+import com.lycoris.service.MarkerRegionVersions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class MarkerEventsConfig {
+
+    @Bean
+    public RedisMessageListenerContainer markerEventsListenerContainer(
+            RedisConnectionFactory connectionFactory,
+            MarkerChangeEvents markerChangeEvents,
+            MarkerDatasetVersion markerDatasetVersion,
+            MarkerRegionVersions markerRegionVersions,
+            @Value("${cache.marker.redis-enabled:true}") boolean redisEnabled
+    ) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        if (redisEnabled) {
+            container.addMessageListener(markerChangeEvents, new ChannelTopic(MarkerChangeEvents.CHANNEL));
+            container.addMessageListener(markerDatasetVersion, new ChannelTopic(MarkerDatasetVersion.CHANNEL));
+            container.addMessageListener(markerRegionVersions, new ChannelTopic(MarkerRegionVersions.CHANNEL));
+        }
+        return container;
+    }
+}
@@ -0,0 +1,92 @@
+package com.lycoris.config;
+
+import com.lycoris.service.MapMarkerService;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Database objects that ddl-auto cannot express (PostGIS columns, GiST/GIN indexes), plus a
+ * backfill of derived columns (search terms, compiled open hours) for rows written before they existed.
+ * Every statement is idempotent, so this runs on each startup.
+ */
+@Component
+public class MarkerSchemaInitializer implements ApplicationRunner {
+
+    private static final List<String> STATEMENTS = List.of(
+            "CREATE EXTENSION IF NOT EXISTS postgis",
+            // Generated from lat/lng, so every write through MapMarker keeps it in sync.
+            """
+            ALTER TABLE map_markers ADD COLUMN IF NOT EXISTS geog geography(Point, 4326)
+              GENERATED ALWAYS AS (ST_SetSRID(ST_MakePoint(lng, lat), 4326)::geography) STORED
+            """,
+            "CREATE INDEX IF NOT EXISTS idx_map_markers_geog ON map_markers USING gist (geog)",
+            // Nearest-k scans walk this one, so unlisted rows never have to be skipped.
+            """
+            CREATE INDEX IF NOT EXISTS idx_map_markers_listed_geog ON map_markers USING gist (geog)
+              WHERE is_public = true AND review_status = 'APPROVED'
+            """,
+            // search_terms already holds final lexemes (CJK bigrams etc.), so skip the text parser.
+            """
+            ALTER TABLE map_markers ADD COLUMN IF NOT EXISTS search_vector tsvector
+              GENERATED ALWAYS AS (array_to_tsvector(string_to_array(coalesce(search_terms, ''), ' '))) STORED
+            """,
+            "CREATE INDEX IF NOT EXISTS idx_map_markers_search_vector ON map_markers USING gin (search_vector)",
+            // Is the minute of the week at `at` (in zone tz) inside the compiled hours? A minute is open
+            // when an odd number of bounds are at or before it (OpenSchedule); width_bucket counts them.
+            """
+            CREATE OR REPLACE FUNCTION marker_open_at(bounds integer[], tz text, at timestamptz)
+              RETURNS boolean LANGUAGE sql STABLE AS $$
+                SELECT CASE WHEN cardinality(bounds) > 0 THEN
+                  width_bucket(
+                    floor(extract(epoch FROM timezone(tz, at) - date_trunc('week', timezone(tz, at))) / 60)::integer,
+                    bounds
+                  ) % 2 = 1
+                ELSE false END
+              $$
+            """,
+            // Scanned by the open-hours sync at each opening/closing transition.
+            "CREATE INDEX IF NOT EXISTS idx_map_markers_open_week ON map_markers (id) WHERE open_week_bounds IS NOT NULL",
+            // Replaced by open_week_bounds (rebuilt from open_hours by the backfill below).
+            "DROP INDEX IF EXISTS idx_map_markers_scheduled"
+    );
+
+    private final JdbcTemplate jdbcTemplate;
+    private final MapMarkerService markerService;
+
+    public MarkerSchemaInitializer(JdbcTemplate jdbcTemplate, MapMarkerService markerService) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.markerService = markerService;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        for (String sql : STATEMENTS) {
+            try {
+                jdbcTemplate.execute(sql);
+            } catch (Exception e) {
+                System.out.println("SCHEMA_INIT_FAILED " + sql.strip().lines().findFirst().orElse(sql)
+                        + " : " + e.getMessage());
+            }
+        }
+        try {
+            int compiled = markerService.backfillOpenHours();
+            if (compiled > 0) {
+                System.out.println("OPEN_HOURS_BACKFILLED count=" + compiled);
+            }
+        } catch (Exception e) {
+            System.out.println("OPEN_HOURS_BACKFILL_FAILED " + e.getMessage());
+        }
+        try {
+            int filled = markerService.backfillSearchTerms();
+            if (filled > 0) {
+                System.out.println("SEARCH_TERMS_BACKFILLED count=" + filled);
+            }
+        } catch (Exception e) {
+            System.out.println("SEARCH_TERMS_BACKFILL_FAILED " + e.getMessage());
+        }
+    }
+}
@@ -4,7 +4,9 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import com.lycoris.security.AuthTokenService;
 import com.lycoris.security.SessionAuthFilter;
+import com.lycoris.security.TokenAuthFilter;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.CorsConfigurationSource;
 import org.springframework.web.cors.UrlBasedCorsConfigurationSource;
@@ -27,7 +29,7 @@ public class SecurityConfig {
     private String allowedOriginsCsv;
 
     @Bean
-    public SecurityFilterChain securityFilterChain(HttpSecurity http) throws Exception {
+    public SecurityFilterChain securityFilterChain(HttpSecurity http, AuthTokenService authTokenService) throws Exception {
         http.csrf(AbstractHttpConfigurer::disable)
                 .cors(cors -> {})
                 .authorizeHttpRequests(auth -> auth.requestMatchers(HttpMethod.OPTIONS, "/**").permitAll()
@@ -38,8 +40,13 @@ public class SecurityConfig {
                                 "/api/markers/public",
                                 "/api/markers/search",
                                 "/api/markers/nearby",
-                                "/api/markers/viewport"
+                                "/api/markers/nearest",
+                                "/api/markers/viewport",
+                                "/api/markers/tiles/**",
+                                "/api/markers/changes",
+                                "/api/markers/{id:\\d+}"
                         ).permitAll()
+                        .requestMatchers(HttpMethod.POST, "/api/markers/batch").permitAll()
                         .requestMatchers(HttpMethod.POST, "/api/markers").authenticated()
                         .requestMatchers("/api/admin/**").hasRole("ADMIN")
                         .requestMatchers(HttpMethod.GET, "/uploads/**").permitAll()
@@ -52,7 +59,8 @@ public class SecurityConfig {
                     response.getWriter().write("{\"message\":\"Spring Security Error\"}");
                 }))
                 .sessionManagement(session -> session.sessionCreationPolicy(SessionCreationPolicy.IF_REQUIRED))
-                .addFilterBefore(new SessionAuthFilter(), UsernamePasswordAuthenticationFilter.class);
+                .addFilterBefore(new SessionAuthFilter(), UsernamePasswordAuthenticationFilter.class)
+                .addFilterBefore(new TokenAuthFilter(authTokenService), SessionAuthFilter.class);
 
         return http.build();
     }
@@ -69,7 +77,7 @@ public class SecurityConfig {
         configuration.setAllowCredentials(true);
         configuration.setAllowedMethods(List.of("GET", "POST", "PUT", "PATCH", "DELETE", "OPTIONS"));
         configuration.setAllowedHeaders(List.of("*"));
-        configuration.setExposedHeaders(List.of("Set-Cookie"));
+        configuration.setExposedHeaders(List.of("Set-Cookie", "ETag"));
         configuration.setMaxAge(3600L);
 
         UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
@@ -1,15 +1,42 @@
 package com.lycoris.config;
 
+import com.lycoris.security.CurrentUserArgumentResolver;
+import com.lycoris.security.RateLimitInterceptor;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.util.List;
+
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
     @Value("${app.upload-dir}")
     private String uploadDir;
 
+    private final CurrentUserArgumentResolver currentUserArgumentResolver;
+    private final RateLimitInterceptor rateLimitInterceptor;
+
+    public WebConfig(
+            CurrentUserArgumentResolver currentUserArgumentResolver,
+            RateLimitInterceptor rateLimitInterceptor
+    ) {
+        this.currentUserArgumentResolver = currentUserArgumentResolver;
+        this.rateLimitInterceptor = rateLimitInterceptor;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(rateLimitInterceptor).addPathPatterns("/api/**");
+    }
+
+    @Override
+    public void addArgumentResolvers(List<HandlerMethodArgumentResolver> resolvers) {
+        resolvers.add(currentUserArgumentResolver);
+    }
+
     @Override
     public void addResourceHandlers(ResourceHandlerRegistry registry) {
         registry.addResourceHandler("/uploads/**")
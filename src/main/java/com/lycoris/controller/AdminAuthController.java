@@ -1,10 +1,10 @@
 package com.lycoris.controller;
 
 import com.lycoris.dto.AdminVerifyRequest;
+import com.lycoris.service.PasswordHasher;
 import jakarta.servlet.http.HttpSession;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -14,14 +14,14 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/api/admin")
 public class AdminAuthController {
 
-    private final PasswordEncoder passwordEncoder;
+    private final PasswordHasher passwordHasher;
     private final String secondPasswordHash;
 
     public AdminAuthController(
-            PasswordEncoder passwordEncoder,
+            PasswordHasher passwordHasher,
             @Value("${admin.second-password-hash:}") String secondPasswordHash
     ) {
-        this.passwordEncoder = passwordEncoder;
+        this.passwordHasher = passwordHasher;
         this.secondPasswordHash = secondPasswordHash == null ? "" : secondPasswordHash.trim();
     }
 
@@ -34,7 +34,7 @@ public class AdminAuthController {
         if (passcode == null || passcode.isBlank()) {
             return ResponseEntity.badRequest().body("缺少二级密码");
         }
-        if (!passwordEncoder.matches(passcode, secondPasswordHash)) {
+        if (!passwordHasher.matches(passcode, secondPasswordHash)) {
             return ResponseEntity.status(403).body("二级密码错误");
         }
         session.setAttribute("adminSecondVerified", true);
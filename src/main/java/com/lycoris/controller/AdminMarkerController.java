@@ -9,8 +9,10 @@ import com.lycoris.repository.MarkerImageProposalRepository;
 import com.lycoris.service.MapMarkerService;
 import jakarta.servlet.http.HttpSession;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -107,7 +109,13 @@ public class AdminMarkerController {
                                 marker.setDescription(p.getDescription());
                                 marker.setIsPublic(p.getIsPublic());
                                 marker.setIsActive(p.getIsActive());
-                                markerService.applyOpenTimeWindow(marker, p.getOpenTimeStart(), p.getOpenTimeEnd());
+                                markerService.applyOpenHours(
+                                        marker,
+                                        p.getOpenTimeStart(),
+                                        p.getOpenTimeEnd(),
+                                        p.getOpenHours(),
+                                        p.getOpenTimezone()
+                                );
                                 marker.setReviewStatus("APPROVED");
                                 marker.setLastEditedBy(p.getProposerUsername());
                                 marker.setLastEditedByPublicId(p.getProposerPublicId());
@@ -224,7 +232,10 @@ public class AdminMarkerController {
     public ResponseEntity<?> listAll(HttpSession session) {
         ResponseEntity<?> blocked = requireSecondFactor(session);
         if (blocked != null) return blocked;
-        return ResponseEntity.ok(markerService.listAll());
+        StreamingResponseBody body = markerService::writeAll;
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
     }
 
     @PatchMapping("/{id}")
@@ -244,8 +255,16 @@ public class AdminMarkerController {
                     if (req.getTitle() != null) marker.setTitle(req.getTitle());
                     if (req.getDescription() != null) marker.setDescription(req.getDescription());
                     if (req.getIsPublic() != null) marker.setIsPublic(req.getIsPublic());
-                    if (req.getOpenTimeStart() != null || req.getOpenTimeEnd() != null) {
-                        markerService.applyOpenTimeWindow(marker, req.getOpenTimeStart(), req.getOpenTimeEnd());
+                    boolean dailyGiven = req.getOpenTimeStart() != null || req.getOpenTimeEnd() != null;
+                    if (dailyGiven || req.getOpenHours() != null || req.getOpenTimezone() != null) {
+                        // 只传每日时间表示改回每日模式；未传的字段沿用当前值
+                        markerService.applyOpenHours(
+                                marker,
+                                dailyGiven ? req.getOpenTimeStart() : marker.getOpenTimeStart(),
+                                dailyGiven ? req.getOpenTimeEnd() : marker.getOpenTimeEnd(),
+                                req.getOpenHours() != null ? req.getOpenHours() : (dailyGiven ? null : marker.getOpenHours()),
+                                req.getOpenTimezone() != null ? req.getOpenTimezone() : marker.getOpenTimezone()
+                        );
                     }
                     if (req.getIsActive() != null) marker.setIsActive(req.getIsActive());
                     marker.setReviewStatus("APPROVED");
@@ -7,9 +7,14 @@ import com.lycoris.dto.UpdateProfileRequest;
 import com.lycoris.entity.User;
 import com.lycoris.dto.RegisterRequest;
 import com.lycoris.dto.UserResponse;
+import com.lycoris.security.AuthTokenService;
+import com.lycoris.security.ClientIp;
+import com.lycoris.security.RateLimited;
+import com.lycoris.service.LoginAttemptService;
 import com.lycoris.service.RegisterRateLimitService;
 import com.lycoris.service.UserService;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
@@ -30,25 +35,52 @@ public class AuthController {
 
     private final UserService userService;
     private final RegisterRateLimitService registerRateLimitService;
+    private final AuthTokenService authTokenService;
+    private final LoginAttemptService loginAttemptService;
     @Value("${app.upload-dir}")
     private String uploadDir;
-    public AuthController(UserService userService, RegisterRateLimitService registerRateLimitService) {
+    public AuthController(
+            UserService userService,
+            RegisterRateLimitService registerRateLimitService,
+            AuthTokenService authTokenService,
+            LoginAttemptService loginAttemptService
+    ) {
         this.userService = userService;
         this.registerRateLimitService = registerRateLimitService;
+        this.authTokenService = authTokenService;
+        this.loginAttemptService = loginAttemptService;
     }
 
     @PostMapping("/login")
-    public ResponseEntity<ApiResponse<UserResponse>> login(@RequestBody LoginRequest request, HttpSession session){
-        User user = userService.login(request.getUsername(), request.getPassword());
+    public ResponseEntity<ApiResponse<UserResponse>> login(
+            @RequestBody LoginRequest request,
+            HttpSession session,
+            HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse
+    ){
+        String clientIp = ClientIp.resolve(httpRequest);
+        if (!loginAttemptService.tryAttempt(request.getUsername(), clientIp)) {
+            return ResponseEntity.status(429).body(ApiResponse.error(429, "登录失败次数过多，请稍后再试"));
+        }
+        User user;
+        try {
+            user = userService.login(request.getUsername(), request.getPassword());
+        } catch (RuntimeException e) {
+            // Busy or failed before the password was judged: not a failed attempt.
+            loginAttemptService.refund(request.getUsername(), clientIp);
+            throw e;
+        }
 
         if (user == null) {
             return ResponseEntity.status(401).body(ApiResponse.error(4001, "Invalid username or password"));
         }
+        loginAttemptService.recordSuccess(request.getUsername(), clientIp);
 
         session.setAttribute("userId", user.getId());
         session.setAttribute("username", user.getUsername());
         session.setAttribute("email", user.getEmail());
         session.setAttribute("role", user.getRole());
+        authTokenService.issue(httpResponse, user.getId(), String.valueOf(user.getPublicId()), user.getRole(), user.getUsername());
 
         UserResponse data = new UserResponse(
                 String.valueOf(user.getPublicId()),
@@ -63,11 +95,16 @@ public class AuthController {
     }
 
     @PostMapping("/register")
-    public ResponseEntity<ApiResponse<UserResponse>> register(@RequestBody RegisterRequest request, HttpSession session, HttpServletRequest httpRequest){
+    public ResponseEntity<ApiResponse<UserResponse>> register(
+            @RequestBody RegisterRequest request,
+            HttpSession session,
+            HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse
+    ){
         if (request.getWebsite() != null && !request.getWebsite().isBlank()) {
             return ResponseEntity.status(400).body(ApiResponse.error(4004, "注册请求无效"));
         }
-        String clientIp = resolveClientIp(httpRequest);
+        String clientIp = ClientIp.resolve(httpRequest);
         if (!registerRateLimitService.tryAcquire(clientIp)) {
             return ResponseEntity.status(429).body(ApiResponse.error(429, "请求过于频繁，请稍后再试"));
         }
@@ -85,6 +122,7 @@ public class AuthController {
         session.setAttribute("username", created.getUsername());
         session.setAttribute("email", created.getEmail());
         session.setAttribute("role", created.getRole());
+        authTokenService.issue(httpResponse, created.getId(), String.valueOf(created.getPublicId()), created.getRole(), created.getUsername());
 
         UserResponse data = new UserResponse(
                 String.valueOf(created.getPublicId()),
@@ -167,6 +205,7 @@ public class AuthController {
     }
 
     @PostMapping(value = "/me/avatar", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    @RateLimited(value = "uploads", capacity = 5, refillPerMinute = 10)
     public ResponseEntity<ApiResponse<UserResponse>> uploadAvatar(
             @RequestParam("file") MultipartFile file,
             HttpSession session
@@ -210,7 +249,11 @@ public class AuthController {
     }
 
     @PostMapping("/me/password")
-    public ResponseEntity<ApiResponse<Void>> changePassword(@RequestBody ChangePasswordRequest request, HttpSession session) {
+    public ResponseEntity<ApiResponse<Void>> changePassword(
+            @RequestBody ChangePasswordRequest request,
+            HttpSession session,
+            HttpServletResponse httpResponse
+    ) {
         Integer userId = (Integer) session.getAttribute("userId");
         if (userId == null) {
             return ResponseEntity.status(401).body(ApiResponse.<Void>error(401, "未登录"));
@@ -225,26 +268,22 @@ public class AuthController {
                     if (!ok) {
                         return ResponseEntity.status(400).body(ApiResponse.<Void>error(400, "原密码错误或新密码不合法"));
                     }
+                    // Older tokens were revoked along with the password; keep this browser signed in.
+                    authTokenService.issue(httpResponse, user.getId(), String.valueOf(user.getPublicId()), user.getRole(), user.getUsername());
                     return ResponseEntity.ok(ApiResponse.<Void>success(null));
                 })
                 .orElseGet(() -> ResponseEntity.status(404).body(ApiResponse.<Void>error(404, "用户不存在")));
     }
 
     @PostMapping("/logout")
-    public ResponseEntity<ApiResponse<Void>> logout(HttpSession session){
+    public ResponseEntity<ApiResponse<Void>> logout(
+            HttpSession session,
+            HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse
+    ){
+        authTokenService.revoke(httpRequest, httpResponse);
         session.invalidate();
         return ResponseEntity.ok(ApiResponse.success(null));
     }
-
-    private static String resolveClientIp(HttpServletRequest request) {
-        String xff = request.getHeader("X-Forwarded-For");
-        if (xff != null && !xff.isBlank()) {
-            String[] parts = xff.split(",");
-            if (parts.length > 0 && !parts[0].isBlank()) {
-                return parts[0].trim();
-            }
-        }
-        return request.getRemoteAddr();
-    }
 }
 
@@ -1,7 +1,10 @@
 package com.lycoris.controller;
 
+import com.lycoris.dto.MarkerBatchQuery;
 import com.lycoris.dto.MarkerCreateRequest;
+import com.lycoris.dto.MarkerPin;
 import com.lycoris.dto.MarkerUpdateRequest;
+import com.lycoris.dto.NearestMarker;
 import com.lycoris.entity.MapMarker;
 import com.lycoris.entity.MarkerEditProposal;
 import com.lycoris.entity.MarkerImageProposal;
@@ -9,16 +12,21 @@ import com.lycoris.entity.MarkerFavorite;
 import com.lycoris.repository.MarkerEditProposalRepository;
 import com.lycoris.repository.MarkerImageProposalRepository;
 import com.lycoris.service.MapMarkerService;
-import com.lycoris.service.UserService;
+import com.lycoris.service.MarkerBatchService;
 import com.lycoris.repository.MarkerFavoriteRepository;
-import jakarta.servlet.http.HttpSession;
+import com.lycoris.security.CurrentUser;
+import com.lycoris.security.RateLimited;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -32,7 +40,7 @@ import java.util.UUID;
 public class MarkerController {
 
     private final MapMarkerService markerService;
-    private final UserService userService;
+    private final MarkerBatchService batchService;
     private final MarkerFavoriteRepository favoriteRepo;
     private final MarkerImageProposalRepository imageProposalRepo;
     private final MarkerEditProposalRepository editProposalRepo;
@@ -41,13 +49,13 @@ public class MarkerController {
 
     public MarkerController(
             MapMarkerService markerService,
-            UserService userService,
+            MarkerBatchService batchService,
             MarkerFavoriteRepository favoriteRepo,
             MarkerImageProposalRepository imageProposalRepo,
             MarkerEditProposalRepository editProposalRepo
     ) {
         this.markerService = markerService;
-        this.userService = userService;
+        this.batchService = batchService;
         this.favoriteRepo = favoriteRepo;
         this.imageProposalRepo = imageProposalRepo;
         this.editProposalRepo = editProposalRepo;
@@ -55,19 +63,13 @@ public class MarkerController {
 
     // 创建点（必须登录：靠 session）
     @PostMapping
-    public ResponseEntity<?> create(@RequestBody MarkerCreateRequest req, HttpSession session) {
-        Object u = session.getAttribute("username");
-        Integer userId = (Integer) session.getAttribute("userId");
-        if (u == null || userId == null) {
-            return ResponseEntity.status(401).body("请先登录");
-        }
-        String username = String.valueOf(u);
-        String userPublicId = userService.findById(userId)
-                .map(user -> String.valueOf(user.getPublicId()))
-                .orElse(null);
-        if (userPublicId == null) {
+    @RateLimited(value = "proposals", capacity = 10, refillPerMinute = 10)
+    public ResponseEntity<?> create(@RequestBody MarkerCreateRequest req, CurrentUser currentUser) {
+        if (currentUser == null) {
             return ResponseEntity.status(401).body("请先登录");
         }
+        String username = currentUser.username();
+        String userPublicId = currentUser.publicId();
 
         // 最小校验
         if (req.getLat() == null || req.getLng() == null || req.getCategory() == null || req.getTitle() == null) {
@@ -84,23 +86,59 @@ public class MarkerController {
 
     // 不登录也能看公共且有效的点（你以后再做“地图默认可看”）
     @GetMapping("/public")
-    public List<MapMarker> listPublicActive() {
-        return markerService.listPublicActive();
+    public ResponseEntity<?> listPublicActive(ServletWebRequest webRequest) {
+        String etag = datasetETag(webRequest);
+        if (webRequest.checkNotModified(etag)) {
+            return null;
+        }
+        StreamingResponseBody body = markerService::writePublicActive;
+        return ResponseEntity.ok()
+                .eTag(etag)
+                .cacheControl(CacheControl.noCache())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
+    // 列表接口只返回精简字段，点开详情再取完整信息
+    @GetMapping("/{id:\\d+}")
+    public ResponseEntity<?> getPublicMarker(@PathVariable("id") Long id) {
+        return markerService.findPublicById(id)
+                .<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.status(404).body("点位不存在"));
+    }
+
+    // 增量同步：返回游标之后新增/修改/下架的点位，客户端无需反复全量拉取 /public
+    @GetMapping("/changes")
+    public ResponseEntity<?> changes(
+            @RequestParam(value = "since", required = false) String since,
+            @RequestParam(value = "limit", defaultValue = "200") Integer limit
+    ) {
+        try {
+            return ResponseEntity.ok(markerService.changesSince(since, limit == null ? 200 : limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
     }
 
     @GetMapping("/search")
-    public List<MapMarker> searchPublic(@RequestParam("q") String q) {
+    @RateLimited(value = "search", capacity = 30, refillPerMinute = 60)
+    public List<MarkerPin> searchPublic(@RequestParam("q") String q) {
         String query = q == null ? "" : q.trim();
         if (query.isEmpty()) return List.of();
         return markerService.searchPublicActive(query);
     }
 
     @GetMapping("/nearby")
+    @RateLimited(value = "nearby", capacity = 60, refillPerMinute = 120)
     public ResponseEntity<?> nearbyPublic(
             @RequestParam("lat") Double lat,
             @RequestParam("lng") Double lng,
             @RequestParam(value = "radius", defaultValue = "1000") Integer radius,
-            @RequestParam(value = "category", defaultValue = "accessible_toilet") String category
+            @RequestParam(value = "category", defaultValue = "accessible_toilet") String category,
+            // 传 categories（逗号分隔）时一次查询多个分类，按分类分组返回；只传 category 时仍返回平铺列表
+            @RequestParam(value = "categories", required = false) String categoriesCsv,
+            @RequestParam(value = "openNow", defaultValue = "false") boolean openNow,
+            ServletWebRequest webRequest
     ) {
         if (lat == null || lng == null) {
             return ResponseEntity.badRequest().body("缺少 lat/lng 参数");
@@ -109,25 +147,96 @@ public class MarkerController {
             return ResponseEntity.badRequest().body("lat/lng 不合法");
         }
         try {
-            return ResponseEntity.ok(markerService.nearbyPublicActive(lat, lng, radius == null ? 1000 : radius, category));
+            int safeRadius = radius == null ? 1000 : radius;
+            List<String> categories = null;
+            if (categoriesCsv != null && !categoriesCsv.isBlank()) {
+                categories = Arrays.stream(categoriesCsv.split(","))
+                        .map(String::trim)
+                        .filter(s -> !s.isEmpty())
+                        .toList();
+            }
+            // 先校验参数再算 ETag，非法请求不会拿到 304
+            markerService.checkNearby(category, categories);
+            String etag = markerService.nearbyETag(requestQuery(webRequest), lat, lng, safeRadius);
+            if (webRequest.checkNotModified(etag)) {
+                return null;
+            }
+            Object body;
+            if (categories != null) {
+                body = markerService.nearbyPublicActiveByCategory(lat, lng, safeRadius, categories, openNow);
+            } else {
+                body = markerService.nearbyPublicActive(lat, lng, safeRadius, category, openNow);
+            }
+            return ResponseEntity.ok()
+                    .eTag(etag)
+                    .cacheControl(CacheControl.noCache())
+                    .body(body);
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         } catch (Exception e) {
             String msg = e.getMessage() == null ? "" : e.getMessage().toLowerCase();
-            if (msg.contains("st_dwithin") || msg.contains("postgis")) {
+            if (msg.contains("st_dwithin") || msg.contains("postgis") || msg.contains("geog")) {
                 return ResponseEntity.status(500).body("数据库未启用 PostGIS，请先执行：CREATE EXTENSION postgis;");
             }
             throw e;
         }
     }
 
+    @GetMapping("/nearest")
+    @RateLimited(value = "nearby", capacity = 60, refillPerMinute = 120)
+    public ResponseEntity<?> nearestPublic(
+            @RequestParam("lat") Double lat,
+            @RequestParam("lng") Double lng,
+            @RequestParam(value = "k", defaultValue = "10") Integer k,
+            @RequestParam(value = "category", defaultValue = "accessible_toilet") String category,
+            @RequestParam(value = "openNow", defaultValue = "false") boolean openNow,
+            ServletWebRequest webRequest
+    ) {
+        if (lat == null || lng == null) {
+            return ResponseEntity.badRequest().body("缺少 lat/lng 参数");
+        }
+        if (lat < -90 || lat > 90 || lng < -180 || lng > 180) {
+            return ResponseEntity.badRequest().body("lat/lng 不合法");
+        }
+        // 结果出来后才知道它覆盖了多大范围，所以 ETag 在查询后确定（版本仍在查询前读取）
+        MapMarkerService.NearestETags etags = markerService.nearestETags(requestQuery(webRequest), lat, lng);
+        try {
+            int safeK = k == null ? 10 : k;
+            List<NearestMarker> nearest = markerService.nearestPublicActive(lat, lng, safeK, category, openNow);
+            String etag = markerService.nearestETag(etags, lat, lng, safeK, nearest);
+            if (webRequest.checkNotModified(etag)) {
+                return null;
+            }
+            return ResponseEntity.ok()
+                    .eTag(etag)
+                    .cacheControl(CacheControl.noCache())
+                    .body(nearest);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // 一次请求带多个 viewport / nearby / ids 子查询，结果按请求顺序返回，单个子查询出错不影响其它
+    @PostMapping("/batch")
+    @RateLimited(value = "batch", capacity = 20, refillPerMinute = 60)
+    public ResponseEntity<?> batch(@RequestBody List<MarkerBatchQuery> queries) {
+        try {
+            return ResponseEntity.ok(batchService.resolve(queries));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
     @GetMapping("/viewport")
     public ResponseEntity<?> listByViewport(
             @RequestParam("minLat") Double minLat,
             @RequestParam("maxLat") Double maxLat,
             @RequestParam("minLng") Double minLng,
             @RequestParam("maxLng") Double maxLng,
-            @RequestParam(value = "categories", required = false) String categoriesCsv
+            @RequestParam(value = "categories", required = false) String categoriesCsv,
+            @RequestParam(value = "zoom", required = false) Integer zoom,
+            @RequestParam(value = "openNow", defaultValue = "false") boolean openNow,
+            ServletWebRequest webRequest
     ) {
         if (minLat == null || maxLat == null || minLng == null || maxLng == null) {
             return ResponseEntity.badRequest().body("缺少视口边界参数");
@@ -140,28 +249,74 @@ public class MarkerController {
                         .filter(s -> !s.isEmpty())
                         .toList();
             }
-            return ResponseEntity.ok(
-                    markerService.listPublicActiveInBounds(minLat, maxLat, minLng, maxLng, categories)
-            );
+            // 先校验边界再算 ETag，非法请求不会拿到 304
+            markerService.checkViewport(minLat, maxLat, minLng, maxLng, categories, zoom);
+            String etag = markerService.regionETag(requestQuery(webRequest), minLat, maxLat, minLng, maxLng);
+            if (webRequest.checkNotModified(etag)) {
+                return null;
+            }
+            // 低缩放级别返回聚合簇，避免一次返回整个国家的点位
+            if (markerService.shouldCluster(zoom)) {
+                return ResponseEntity.ok()
+                        .eTag(etag)
+                        .cacheControl(CacheControl.noCache())
+                        .body(markerService.clusterPublicActiveInBounds(minLat, maxLat, minLng, maxLng, categories, zoom, openNow));
+            }
+            return ResponseEntity.ok()
+                    .eTag(etag)
+                    .cacheControl(CacheControl.noCache())
+                    .body(markerService.listPublicActiveInBounds(minLat, maxLat, minLng, maxLng, categories, openNow));
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
     }
 
+    @GetMapping("/tiles/{z}/{x}/{y}.mvt")
+    public ResponseEntity<?> vectorTile(
+            @PathVariable("z") Integer z,
+            @PathVariable("x") Integer x,
+            @PathVariable("y") Integer y,
+            @RequestParam(value = "categories", required = false) String categoriesCsv
+    ) {
+        try {
+            List<String> categories = null;
+            if (categoriesCsv != null && !categoriesCsv.isBlank()) {
+                categories = Arrays.stream(categoriesCsv.split(","))
+                        .map(String::trim)
+                        .filter(s -> !s.isEmpty())
+                        .toList();
+            }
+            byte[] tile = markerService.vectorTile(z, x, y, categories);
+            return ResponseEntity.ok()
+                    .contentType(MediaType.parseMediaType("application/vnd.mapbox-vector-tile"))
+                    .body(tile);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (Exception e) {
+            String msg = e.getMessage() == null ? "" : e.getMessage().toLowerCase();
+            if (msg.contains("st_asmvt") || msg.contains("st_tileenvelope") || msg.contains("postgis")) {
+                return ResponseEntity.status(500).body("数据库未启用 PostGIS 3，请先执行：CREATE EXTENSION postgis;");
+            }
+            throw e;
+        }
+    }
+
     // 你调试用：查看全部（上线前再关掉）
     @GetMapping("/all")
-    public List<MapMarker> listAll() {
-        return markerService.listAll();
+    public ResponseEntity<StreamingResponseBody> listAll() {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(markerService::writeAll);
     }
 
     @PostMapping(value = "/{id}/image", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    @RateLimited(value = "uploads", capacity = 5, refillPerMinute = 10)
     public ResponseEntity<?> uploadMarkerImage(
             @PathVariable("id") Long id,
             @RequestParam("file") MultipartFile file,
-            HttpSession session
+            CurrentUser currentUser
     ) {
-        Integer userId = (Integer) session.getAttribute("userId");
-        if (userId == null) {
+        if (currentUser == null) {
             return ResponseEntity.status(401).body("请先登录");
         }
         if (file == null || file.isEmpty()) {
@@ -169,12 +324,6 @@ public class MarkerController {
         }
 
         return markerService.findById(id).map(marker -> {
-            String userPublicId = userService.findById(userId)
-                    .map(user -> String.valueOf(user.getPublicId()))
-                    .orElse(null);
-            if (userPublicId == null) {
-                return ResponseEntity.status(401).body("请先登录");
-            }
             try {
                 String ext = StringUtils.getFilenameExtension(file.getOriginalFilename());
                 String safeExt = (ext == null || ext.isBlank()) ? "png" : ext.toLowerCase();
@@ -188,8 +337,8 @@ public class MarkerController {
                 MarkerImageProposal proposal = new MarkerImageProposal();
                 proposal.setMarkerId(marker.getId());
                 proposal.setMarkerTitle(marker.getTitle());
-                proposal.setProposerUsername(String.valueOf(session.getAttribute("username")));
-                proposal.setProposerPublicId(userPublicId);
+                proposal.setProposerUsername(currentUser.username());
+                proposal.setProposerPublicId(currentUser.publicId());
                 proposal.setImageUrl(url);
                 proposal.setStatus("PENDING");
                 imageProposalRepo.save(proposal);
@@ -202,21 +351,16 @@ public class MarkerController {
     }
 
     @PatchMapping("/{id}")
+    @RateLimited(value = "proposals", capacity = 10, refillPerMinute = 10)
     public ResponseEntity<?> updateMarker(
             @PathVariable("id") Long id,
             @RequestBody MarkerUpdateRequest req,
-            HttpSession session
+            CurrentUser currentUser
     ) {
-        Integer userId = (Integer) session.getAttribute("userId");
-        if (userId == null) {
-            return ResponseEntity.status(401).body("请先登录");
-        }
-        String userPublicId = userService.findById(userId)
-                .map(user -> String.valueOf(user.getPublicId()))
-                .orElse(null);
-        if (userPublicId == null) {
+        if (currentUser == null) {
             return ResponseEntity.status(401).body("请先登录");
         }
+        String userPublicId = currentUser.publicId();
 
         return markerService.findById(id)
                 .<ResponseEntity<?>>map(marker -> {
@@ -232,15 +376,24 @@ public class MarkerController {
 
             String proposedOpenStart = marker.getOpenTimeStart();
             String proposedOpenEnd = marker.getOpenTimeEnd();
-            if (req.getOpenTimeStart() != null || req.getOpenTimeEnd() != null) {
+            String proposedOpenHours = marker.getOpenHours();
+            boolean dailyGiven = req.getOpenTimeStart() != null || req.getOpenTimeEnd() != null;
+            if (dailyGiven) {
                 proposedOpenStart = markerService.normalizeOpenTime(req.getOpenTimeStart());
                 proposedOpenEnd = markerService.normalizeOpenTime(req.getOpenTimeEnd());
                 if ((proposedOpenStart == null) != (proposedOpenEnd == null)) {
                     throw new IllegalArgumentException("请同时填写开始和结束时间，或都留空");
                 }
+                proposedOpenHours = null;
+            }
+            if (req.getOpenHours() != null) {
+                proposedOpenHours = markerService.normalizeOpenHours(req.getOpenHours());
             }
+            String proposedOpenTimezone = req.getOpenTimezone() != null
+                    ? markerService.normalizeOpenTimezone(req.getOpenTimezone())
+                    : marker.getOpenTimezone();
 
-            String username = String.valueOf(session.getAttribute("username"));
+            String username = currentUser.username();
             boolean isOwner = marker.getUserPublicId() != null && marker.getUserPublicId().equals(userPublicId);
 
             MarkerEditProposal proposal = new MarkerEditProposal();
@@ -258,6 +411,8 @@ public class MarkerController {
             proposal.setIsActive(proposedIsActive);
             proposal.setOpenTimeStart(proposedOpenStart);
             proposal.setOpenTimeEnd(proposedOpenEnd);
+            proposal.setOpenHours(proposedOpenHours);
+            proposal.setOpenTimezone(proposedOpenTimezone);
             proposal.setStatus("PENDING");
             editProposalRepo.save(proposal);
 
@@ -265,6 +420,17 @@ public class MarkerController {
         }).orElseGet(() -> ResponseEntity.status(404).body("点位不存在"));
     }
 
+    // 数据集版本 + 查询参数组成 ETag，客户端带 If-None-Match 时可直接 304
+    private String datasetETag(ServletWebRequest webRequest) {
+        return markerService.datasetETag(requestQuery(webRequest));
+    }
+
+    private static String requestQuery(ServletWebRequest webRequest) {
+        HttpServletRequest request = webRequest.getRequest();
+        String query = request.getQueryString();
+        return request.getRequestURI() + "?" + (query == null ? "" : query);
+    }
+
     @ExceptionHandler(IllegalArgumentException.class)
     public ResponseEntity<?> handleIllegalArgument(IllegalArgumentException e) {
         return ResponseEntity.badRequest().body(e.getMessage());
@@ -272,17 +438,11 @@ public class MarkerController {
 
     @DeleteMapping("/{id}")
     @Transactional
-    public ResponseEntity<?> deleteMarker(@PathVariable("id") Long id, HttpSession session) {
-        Integer userId = (Integer) session.getAttribute("userId");
-        if (userId == null) {
-            return ResponseEntity.status(401).body("请先登录");
-        }
-        String userPublicId = userService.findById(userId)
-                .map(user -> String.valueOf(user.getPublicId()))
-                .orElse(null);
-        if (userPublicId == null) {
+    public ResponseEntity<?> deleteMarker(@PathVariable("id") Long id, CurrentUser currentUser) {
+        if (currentUser == null) {
             return ResponseEntity.status(401).body("请先登录");
         }
+        String userPublicId = currentUser.publicId();
 
         return markerService.findById(id).map(marker -> {
             if (marker.getUserPublicId() == null || !userPublicId.equals(marker.getUserPublicId())) {
@@ -295,17 +455,11 @@ public class MarkerController {
     }
 
     @PostMapping("/{id}/favorite")
-    public ResponseEntity<?> favorite(@PathVariable("id") Long id, HttpSession session) {
-        Integer userId = (Integer) session.getAttribute("userId");
-        if (userId == null) {
-            return ResponseEntity.status(401).body("请先登录");
-        }
-        String userPublicId = userService.findById(userId)
-                .map(user -> String.valueOf(user.getPublicId()))
-                .orElse(null);
-        if (userPublicId == null) {
+    public ResponseEntity<?> favorite(@PathVariable("id") Long id, CurrentUser currentUser) {
+        if (currentUser == null) {
             return ResponseEntity.status(401).body("请先登录");
         }
+        String userPublicId = currentUser.publicId();
 
         if (!markerService.findById(id).isPresent()) {
             return ResponseEntity.status(404).body("点位不存在");
@@ -320,34 +474,22 @@ public class MarkerController {
     }
 
     @DeleteMapping("/{id}/favorite")
-    public ResponseEntity<?> unfavorite(@PathVariable("id") Long id, HttpSession session) {
-        Integer userId = (Integer) session.getAttribute("userId");
-        if (userId == null) {
-            return ResponseEntity.status(401).body("请先登录");
-        }
-        String userPublicId = userService.findById(userId)
-                .map(user -> String.valueOf(user.getPublicId()))
-                .orElse(null);
-        if (userPublicId == null) {
+    public ResponseEntity<?> unfavorite(@PathVariable("id") Long id, CurrentUser currentUser) {
+        if (currentUser == null) {
             return ResponseEntity.status(401).body("请先登录");
         }
+        String userPublicId = currentUser.publicId();
 
         favoriteRepo.deleteByUserPublicIdAndMarkerId(userPublicId, id);
         return ResponseEntity.ok().build();
     }
 
     @GetMapping("/me/favorites")
-    public ResponseEntity<?> myFavorites(HttpSession session) {
-        Integer userId = (Integer) session.getAttribute("userId");
-        if (userId == null) {
-            return ResponseEntity.status(401).body("请先登录");
-        }
-        String userPublicId = userService.findById(userId)
-                .map(user -> String.valueOf(user.getPublicId()))
-                .orElse(null);
-        if (userPublicId == null) {
+    public ResponseEntity<?> myFavorites(CurrentUser currentUser) {
+        if (currentUser == null) {
             return ResponseEntity.status(401).body("请先登录");
         }
+        String userPublicId = currentUser.publicId();
 
         List<MarkerFavorite> favs = favoriteRepo.findByUserPublicId(userPublicId);
         List<Long> ids = favs.stream().map(MarkerFavorite::getMarkerId).toList();
@@ -355,32 +497,20 @@ public class MarkerController {
     }
 
     @GetMapping("/me/created")
-    public ResponseEntity<?> myCreatedMarkers(HttpSession session) {
-        Integer userId = (Integer) session.getAttribute("userId");
-        if (userId == null) {
-            return ResponseEntity.status(401).body("请先登录");
-        }
-        String userPublicId = userService.findById(userId)
-                .map(user -> String.valueOf(user.getPublicId()))
-                .orElse(null);
-        if (userPublicId == null) {
+    public ResponseEntity<?> myCreatedMarkers(CurrentUser currentUser) {
+        if (currentUser == null) {
             return ResponseEntity.status(401).body("请先登录");
         }
+        String userPublicId = currentUser.publicId();
         return ResponseEntity.ok(markerService.listByUserPublicId(userPublicId));
     }
 
     @GetMapping("/me/favorites/details")
-    public ResponseEntity<?> myFavoriteMarkers(HttpSession session) {
-        Integer userId = (Integer) session.getAttribute("userId");
-        if (userId == null) {
-            return ResponseEntity.status(401).body("请先登录");
-        }
-        String userPublicId = userService.findById(userId)
-                .map(user -> String.valueOf(user.getPublicId()))
-                .orElse(null);
-        if (userPublicId == null) {
+    public ResponseEntity<?> myFavoriteMarkers(CurrentUser currentUser) {
+        if (currentUser == null) {
             return ResponseEntity.status(401).body("请先登录");
         }
+        String userPublicId = currentUser.publicId();
 
         List<Long> ids = favoriteRepo.findByUserPublicId(userPublicId)
                 .stream()
@@ -0,0 +1,36 @@
+package com.lycoris.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * One sub-query of POST /api/markers/batch; which fields apply depends on {@code type}.
+ */
+@Getter
+@Setter
+public class MarkerBatchQuery {
+    // viewport | nearby | ids
+    private String type;
+
+    // viewport
+    private Double minLat;
+    private Double maxLat;
+    private Double minLng;
+    private Double maxLng;
+    private Integer zoom;
+
+    // nearby
+    private Double lat;
+    private Double lng;
+    private Integer radius;
+    private String category;
+
+    // viewport / nearby
+    private List<String> categories;
+    private Boolean openNow;
+
+    // ids
+    private List<Long> ids;
+}
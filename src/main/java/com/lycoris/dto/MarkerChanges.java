@@ -0,0 +1,10 @@
+package com.lycoris.dto;
+
+import java.util.List;
+
+/**
+ * @param upserted created / edited / approved markers that are currently public
+ * @param removed  tombstones: deleted, rejected, unpublished or still pending markers
+ */
+public record MarkerChanges(List<MarkerPin> upserted, List<Long> removed, String cursor, boolean hasMore) {
+}
@@ -0,0 +1,9 @@
+package com.lycoris.dto;
+
+import java.util.Map;
+
+/**
+ * @param categories category -> marker count inside this cluster
+ */
+public record MarkerCluster(double lat, double lng, int count, Map<String, Integer> categories) {
+}
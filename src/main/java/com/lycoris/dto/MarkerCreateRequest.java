@@ -15,6 +15,8 @@ public class MarkerCreateRequest {
     private Boolean isActive = true;
     private String openTimeStart;
     private String openTimeEnd;
+    private String openHours;
+    private String openTimezone;
 
     // markImage 先允许传空字符串或不传
     private String markImage;
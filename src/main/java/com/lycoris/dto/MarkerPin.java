@@ -0,0 +1,111 @@
+package com.lycoris.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.lycoris.entity.MapMarker;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Compact marker shape for map listing endpoints; full details live at GET /api/markers/{id}.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class MarkerPin {
+    private Long id;
+    private Double lat;
+    private Double lng;
+    private String category;
+    private String title;
+    private Boolean isActive;
+    private String markImage;
+
+    // Shown to clients; isActive already reflects the hours (flipped by MarkerOpenHours).
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String openTimeStart;
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String openTimeEnd;
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String openHours;
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String openTimezone;
+
+    // Compiled schedule used by the in-memory index to flip isActive; not part of the API.
+    @JsonIgnore
+    private int[] openWeekBounds;
+
+    public MarkerPin(
+            Long id,
+            Double lat,
+            Double lng,
+            String category,
+            String title,
+            Boolean isActive,
+            String markImage,
+            String openTimeStart,
+            String openTimeEnd
+    ) {
+        this.id = id;
+        this.lat = lat;
+        this.lng = lng;
+        this.category = category;
+        this.title = title;
+        this.isActive = isActive;
+        this.markImage = markImage;
+        this.openTimeStart = openTimeStart;
+        this.openTimeEnd = openTimeEnd;
+    }
+
+    public MarkerPin(
+            Long id,
+            Double lat,
+            Double lng,
+            String category,
+            String title,
+            Boolean isActive,
+            String markImage,
+            String openTimeStart,
+            String openTimeEnd,
+            String openHours,
+            String openTimezone,
+            int[] openWeekBounds
+    ) {
+        this(id, lat, lng, category, title, isActive, markImage, openTimeStart, openTimeEnd);
+        this.openHours = openHours;
+        this.openTimezone = openTimezone;
+        this.openWeekBounds = openWeekBounds;
+    }
+
+    public static MarkerPin from(MapMarker m) {
+        return new MarkerPin(
+                m.getId(),
+                m.getLat(),
+                m.getLng(),
+                m.getCategory(),
+                m.getTitle(),
+                m.getIsActive(),
+                m.getMarkImage(),
+                m.getOpenTimeStart(),
+                m.getOpenTimeEnd(),
+                m.getOpenHours(),
+                m.getOpenTimezone(),
+                m.getOpenWeekBounds()
+        );
+    }
+
+    // Pins held by the index and caches are shared between threads: change copies, never them.
+
+    public MarkerPin withCategory(String category) {
+        return new MarkerPin(id, lat, lng, category, title, isActive, markImage, openTimeStart, openTimeEnd, openHours, openTimezone, openWeekBounds);
+    }
+
+    public MarkerPin withIsActive(Boolean isActive) {
+        return new MarkerPin(id, lat, lng, category, title, isActive, markImage, openTimeStart, openTimeEnd, openHours, openTimezone, openWeekBounds);
+    }
+
+}
@@ -13,4 +13,6 @@ public class MarkerUpdateRequest {
     private Boolean isActive;
     private String openTimeStart;
     private String openTimeEnd;
+    private String openHours;
+    private String openTimezone;
 }
@@ -0,0 +1,19 @@
+package com.lycoris.dto;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import lombok.Getter;
+
+/**
+ * One /api/markers/nearest result: the pin's fields plus its distance from the query point.
+ */
+@Getter
+public class NearestMarker {
+    @JsonUnwrapped
+    private final MarkerPin marker;
+    private final long distanceMeters;
+
+    public NearestMarker(MarkerPin marker, long distanceMeters) {
+        this.marker = marker;
+        this.distanceMeters = distanceMeters;
+    }
+}
@@ -1,9 +1,12 @@
 package com.lycoris.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
 
 import java.time.Instant;
 
@@ -11,14 +14,20 @@ import java.time.Instant;
 @Getter
 @Setter
 @NoArgsConstructor
-@Table(name = "map_markers")
+@Table(
+        name = "map_markers",
+        indexes = {
+                // keyset pagination for /api/markers/changes
+                @Index(name = "idx_map_markers_updated_at_id", columnList = "updated_at, id")
+        }
+)
 public class MapMarker {
 
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
-    // 坐标
+    // 坐标（数据库另有由 lat/lng 生成的 geog 列 + GiST 索引，见 MarkerSchemaInitializer）
     @Column(nullable = false)
     private Double lat;
 
@@ -56,6 +65,21 @@ public class MapMarker {
     @Column(length = 5)
     private String openTimeEnd;
 
+    // 每周营业时间，如 1-5=09:00-18:00;6=10:00-14:00（1=周一），设置后优先于上面的每日时间
+    @Column(length = 512)
+    private String openHours;
+
+    // IANA 时区（如 Asia/Shanghai），为空表示服务器时区
+    @Column(length = 64)
+    private String openTimezone;
+
+    // 营业时间预编译成一周内的分钟边界数组（如 {540,720,780,1080}，周一 00:00 = 0），由 MapMarkerService 写入；
+    // SQL 用 marker_open_at() 直接判断是否营业，定时任务据此切换 isActive
+    @JsonIgnore
+    @JdbcTypeCode(SqlTypes.ARRAY)
+    @Column(columnDefinition = "integer[]")
+    private int[] openWeekBounds;
+
     @Column(nullable = false, length = 16)
     private String reviewStatus = "APPROVED";
 
@@ -72,6 +96,11 @@ public class MapMarker {
     @Column(length = 512)
     private String markImage;
 
+    // 搜索用词元（title/description/category 分词结果，空格分隔），由 MapMarkerService 写入
+    @JsonIgnore
+    @Column(columnDefinition = "text")
+    private String searchTerms;
+
     @Column(nullable = false)
     private Instant createdAt = Instant.now();
 
@@ -0,0 +1,32 @@
+package com.lycoris.entity;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.Instant;
+
+// 删除日志：增量同步接口据此下发墓碑
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@Table(
+        name = "marker_deletions",
+        indexes = {
+                @Index(name = "idx_marker_deletions_deleted_at", columnList = "deleted_at")
+        }
+)
+public class MarkerDeletion {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long markerId;
+
+    @Column(nullable = false)
+    private Instant deletedAt = Instant.now();
+}
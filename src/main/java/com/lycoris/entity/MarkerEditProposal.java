@@ -65,6 +65,12 @@ public class MarkerEditProposal {
     @Column(length = 5)
     private String openTimeEnd;
 
+    @Column(length = 512)
+    private String openHours;
+
+    @Column(length = 64)
+    private String openTimezone;
+
     @Column(nullable = false, length = 16)
     private String status = "PENDING";
 
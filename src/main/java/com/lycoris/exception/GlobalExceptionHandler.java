@@ -1,6 +1,7 @@
 package com.lycoris.exception;
 
 import com.lycoris.dto.ApiResponse;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
@@ -14,5 +15,12 @@ public class GlobalExceptionHandler {
         return ResponseEntity.status(413)
                 .body(ApiResponse.error(413, "上传文件过大，请选择 5MB 以内的图片"));
     }
+
+    @ExceptionHandler(PasswordHashBusyException.class)
+    public ResponseEntity<ApiResponse<Void>> handlePasswordHashBusy(PasswordHashBusyException ex) {
+        return ResponseEntity.status(503)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body(ApiResponse.error(503, "服务繁忙，请稍后再试"));
+    }
 }
 
@@ -0,0 +1,9 @@
+package com.lycoris.exception;
+
+/** The password hashing pool is saturated; surfaced as 503 so clients back off. */
+public class PasswordHashBusyException extends RuntimeException {
+
+    public PasswordHashBusyException() {
+        super("password hashing pool is full");
+    }
+}
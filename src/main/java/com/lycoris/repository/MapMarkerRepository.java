@@ -1,16 +1,24 @@
 package com.lycoris.repository;
 
+import com.lycoris.dto.MarkerPin;
 import com.lycoris.entity.MapMarker;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface MapMarkerRepository extends JpaRepository<MapMarker, Long> {
 
-    List<MapMarker> findByIsPublicTrueAndReviewStatus(String reviewStatus);
-
     List<MapMarker> findByUsername(String username);
 
     List<MapMarker> findByUserPublicId(String userPublicId);
@@ -18,82 +26,219 @@ public interface MapMarkerRepository extends JpaRepository<MapMarker, Long> {
     List<MapMarker> findByIdIn(List<Long> ids);
 
     @Query("""
-            select m from MapMarker m
+            select new com.lycoris.dto.MarkerPin(
+              m.id, m.lat, m.lng, m.category, m.title, m.isActive, m.markImage, m.openTimeStart, m.openTimeEnd,
+              m.openHours, m.openTimezone, m.openWeekBounds
+            )
+            from MapMarker m
             where m.isPublic = true
               and m.reviewStatus = 'APPROVED'
-              and (
-                lower(m.title) like lower(concat('%', :q, '%'))
-                or lower(m.description) like lower(concat('%', :q, '%'))
-                or lower(m.category) like lower(concat('%', :q, '%'))
-                or str(m.lat) like concat('%', :q, '%')
-                or str(m.lng) like concat('%', :q, '%')
-              )
             """)
-    List<MapMarker> searchPublicActive(@Param("q") String q);
+    List<MarkerPin> findPublicApprovedPins();
+
+    // Server-side cursor for full exports; callers must consume it inside a transaction and close it.
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"),
+            @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    @Query("select m from MapMarker m order by m.id")
+    Stream<MapMarker> streamAll();
 
+    // :query is a literal tsquery built by MarkerSearchTokenizer; search_vector is GIN-indexed.
     @Query(value = """
-            select m.*
+            select m.id as "id",
+                   m.lat as "lat",
+                   m.lng as "lng",
+                   m.category as "category",
+                   m.title as "title",
+                   m.is_active as "isActive",
+                   m.mark_image as "markImage",
+                   m.open_time_start as "openTimeStart",
+                   m.open_time_end as "openTimeEnd",
+                   m.open_hours as "openHours",
+                   m.open_timezone as "openTimezone"
             from map_markers m
             where m.is_public = true
               and m.review_status = 'APPROVED'
-              and m.category = :category
-              and ST_DWithin(
-                ST_SetSRID(ST_MakePoint(m.lng, m.lat), 4326)::geography,
-                ST_SetSRID(ST_MakePoint(:lng, :lat), 4326)::geography,
-                :radius
-              )
-            order by ST_Distance(
-                ST_SetSRID(ST_MakePoint(m.lng, m.lat), 4326)::geography,
-                ST_SetSRID(ST_MakePoint(:lng, :lat), 4326)::geography
-            ) asc
+              and m.search_vector @@ cast(:query as tsquery)
+            order by ts_rank(m.search_vector, cast(:query as tsquery)) desc, m.id desc
+            limit :limit
+            """, nativeQuery = true)
+    List<MarkerPinView> searchPublicActive(@Param("query") String query, @Param("limit") int limit);
+
+    // Flips the stored isActive of scheduled markers to what their hours say at :at, in the DB
+    // itself (partial index idx_map_markers_open_week). Bumps updated_at explicitly so delta sync
+    // sees the flip, with the wall clock rather than :at: a transition that runs late would
+    // otherwise stamp rows behind cursors handed out in the meantime. :defaultZone stands in for
+    // a null open_timezone.
+    @Modifying
+    @Transactional
+    @Query(value = """
+            update map_markers m
+            set is_active = not m.is_active, updated_at = clock_timestamp()
+            where m.open_week_bounds is not null
+              and m.is_active <> marker_open_at(m.open_week_bounds, coalesce(m.open_timezone, :defaultZone), :at)
             """, nativeQuery = true)
-    List<MapMarker> findNearbyByCategory(
+    int syncOpenNow(@Param("at") Instant at, @Param("defaultZone") String defaultZone);
+
+    @Query("""
+            select m.id from MapMarker m
+            where m.openWeekBounds is null
+              and (m.openHours is not null or m.openTimeStart is not null)
+              and m.id > :afterId
+            order by m.id
+            """)
+    List<Long> findIdsMissingOpenSchedule(@Param("afterId") long afterId, Pageable pageable);
+
+    @Modifying
+    @Transactional
+    @Query("update MapMarker m set m.openWeekBounds = :compiled, m.isActive = :active where m.id = :id")
+    int updateOpenSchedule(@Param("id") Long id, @Param("compiled") int[] compiled, @Param("active") boolean active);
+
+    @Query("select m.id from MapMarker m where m.searchTerms is null")
+    List<Long> findIdsMissingSearchTerms(Pageable pageable);
+
+    // Bulk update on purpose: skips @PreUpdate so backfilling does not touch updatedAt.
+    @Modifying
+    @Transactional
+    @Query("update MapMarker m set m.searchTerms = :terms where m.id = :id")
+    int updateSearchTerms(@Param("id") Long id, @Param("terms") String terms);
+
+    @Query(value = """
+            select m.id as "id",
+                   m.lat as "lat",
+                   m.lng as "lng",
+                   m.category as "category",
+                   m.title as "title",
+                   m.is_active as "isActive",
+                   m.mark_image as "markImage",
+                   m.open_time_start as "openTimeStart",
+                   m.open_time_end as "openTimeEnd",
+                   m.open_hours as "openHours",
+                   m.open_timezone as "openTimezone"
+            from map_markers m
+            where m.is_public = true
+              and m.review_status = 'APPROVED'
+              and m.category in (:categories)
+              and (:openNow = false or case
+                    when m.open_week_bounds is null then m.is_active
+                    else marker_open_at(m.open_week_bounds, coalesce(m.open_timezone, :defaultZone), now())
+                  end)
+              and ST_DWithin(m.geog, ST_SetSRID(ST_MakePoint(:lng, :lat), 4326)::geography, :radius)
+            order by ST_Distance(m.geog, ST_SetSRID(ST_MakePoint(:lng, :lat), 4326)::geography) asc
+            """, nativeQuery = true)
+    List<MarkerPinView> findNearbyByCategory(
             @Param("lat") double lat,
             @Param("lng") double lng,
             @Param("radius") int radius,
-            @Param("category") String category
+            @Param("categories") Collection<String> categories,
+            @Param("openNow") boolean openNow,
+            @Param("defaultZone") String defaultZone
     );
 
-    List<MapMarker> findByReviewStatusOrderByUpdatedAtDesc(String reviewStatus);
+    // KNN: the GiST index hands rows back in distance order, so about k rows are visited whatever the density.
+    @Query(value = """
+            select m.id as "id",
+                   m.lat as "lat",
+                   m.lng as "lng",
+                   m.category as "category",
+                   m.title as "title",
+                   m.is_active as "isActive",
+                   m.mark_image as "markImage",
+                   m.open_time_start as "openTimeStart",
+                   m.open_time_end as "openTimeEnd",
+                   m.open_hours as "openHours",
+                   m.open_timezone as "openTimezone"
+            from map_markers m
+            where m.is_public = true
+              and m.review_status = 'APPROVED'
+              and m.category = :category
+              and (:openNow = false or case
+                    when m.open_week_bounds is null then m.is_active
+                    else marker_open_at(m.open_week_bounds, coalesce(m.open_timezone, :defaultZone), now())
+                  end)
+            order by m.geog <-> ST_SetSRID(ST_MakePoint(:lng, :lat), 4326)::geography
+            limit :k
+            """, nativeQuery = true)
+    List<MarkerPinView> findNearest(
+            @Param("lat") double lat,
+            @Param("lng") double lng,
+            @Param("k") int k,
+            @Param("category") String category,
+            @Param("openNow") boolean openNow,
+            @Param("defaultZone") String defaultZone
+    );
 
-    @Query("""
-            select m from MapMarker m
-            where m.isPublic = true
-              and m.reviewStatus = 'APPROVED'
-              and m.lat between :minLat and :maxLat
-              and m.lng between :minLng and :maxLng
-            """)
-    List<MapMarker> findPublicActiveInBounds(
+    // Categories are normalized like MapMarkerService.normalizeCategoryForRead (unknown and legacy
+    // values read as self_definition), so tiles agree with /nearby and /viewport. :supported and
+    // :categories are comma-separated; an empty :categories means every category.
+    @Query(value = """
+            select ST_AsMVT(tile, 'markers', 4096, 'geom')
+            from (
+              select m.id,
+                     c.category,
+                     m.title,
+                     m.is_active as "isActive",
+                     m.mark_image as "markImage",
+                     ST_AsMVTGeom(
+                       ST_Transform(ST_SetSRID(ST_MakePoint(m.lng, m.lat), 4326), 3857),
+                       ST_TileEnvelope(:z, :x, :y),
+                       4096, 64, true
+                     ) as geom
+              from map_markers m
+              cross join lateral (
+                select case when lower(trim(m.category)) = any(string_to_array(:supported, ','))
+                            then lower(trim(m.category))
+                            else 'self_definition'
+                       end as category
+              ) c
+              where m.is_public = true
+                and m.review_status = 'APPROVED'
+                and m.lat between :minLat and :maxLat
+                and m.lng between :minLng and :maxLng
+                and (:categories = '' or c.category = any(string_to_array(:categories, ',')))
+            ) as tile
+            where tile.geom is not null
+            """, nativeQuery = true)
+    byte[] buildVectorTile(
+            @Param("z") int z,
+            @Param("x") int x,
+            @Param("y") int y,
             @Param("minLat") double minLat,
             @Param("maxLat") double maxLat,
             @Param("minLng") double minLng,
-            @Param("maxLng") double maxLng
+            @Param("maxLng") double maxLng,
+            @Param("supported") String supported,
+            @Param("categories") String categories
     );
 
+    List<MapMarker> findByReviewStatusOrderByUpdatedAtDesc(String reviewStatus);
+
     @Query("""
             select m from MapMarker m
-            where m.isPublic = true
-              and m.reviewStatus = 'APPROVED'
-              and m.lat between :minLat and :maxLat
-              and m.lng between :minLng and :maxLng
-              and m.category in :categories
+            where (m.updatedAt > :since or (m.updatedAt = :since and m.id > :sinceId))
+              and m.updatedAt <= :upTo
+            order by m.updatedAt asc, m.id asc
             """)
-    List<MapMarker> findPublicActiveInBoundsAndCategoryIn(
-            @Param("minLat") double minLat,
-            @Param("maxLat") double maxLat,
-            @Param("minLng") double minLng,
-            @Param("maxLng") double maxLng,
-            @Param("categories") List<String> categories
+    List<MapMarker> findChangedSince(
+            @Param("since") Instant since,
+            @Param("sinceId") long sinceId,
+            @Param("upTo") Instant upTo,
+            Pageable pageable
     );
 
     @Query("""
-            select m from MapMarker m
+            select new com.lycoris.dto.MarkerPin(
+              m.id, m.lat, m.lng, m.category, m.title, m.isActive, m.markImage, m.openTimeStart, m.openTimeEnd,
+              m.openHours, m.openTimezone, m.openWeekBounds
+            )
+            from MapMarker m
             where m.isPublic = true
               and m.reviewStatus = 'APPROVED'
               and abs(m.lat - :lat) <= :eps
               and abs(m.lng - :lng) <= :eps
             """)
-    List<MapMarker> findByLatLngNear(
+    List<MarkerPin> findByLatLngNear(
             @Param("lat") double lat,
             @Param("lng") double lng,
             @Param("eps") double eps
@@ -0,0 +1,11 @@
+package com.lycoris.repository;
+
+import com.lycoris.entity.MarkerDeletion;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.time.Instant;
+import java.util.List;
+
+public interface MarkerDeletionRepository extends JpaRepository<MarkerDeletion, Long> {
+    List<MarkerDeletion> findByDeletedAtGreaterThanAndDeletedAtLessThanEqualOrderByDeletedAtAsc(Instant after, Instant upTo);
+}
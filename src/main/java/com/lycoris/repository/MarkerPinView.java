@@ -0,0 +1,28 @@
+package com.lycoris.repository;
+
+/**
+ * Interface projection for native marker queries that only need pin columns.
+ */
+public interface MarkerPinView {
+    Long getId();
+
+    Double getLat();
+
+    Double getLng();
+
+    String getCategory();
+
+    String getTitle();
+
+    Boolean getIsActive();
+
+    String getMarkImage();
+
+    String getOpenTimeStart();
+
+    String getOpenTimeEnd();
+
+    String getOpenHours();
+
+    String getOpenTimezone();
+}
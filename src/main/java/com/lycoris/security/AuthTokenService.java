@@ -0,0 +1,247 @@
+package com.lycoris.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional stateless login: an HMAC-SHA256 signed cookie carrying user id, publicId, role and
+ * expiry, issued next to the session at login/register. Verifying it is CPU only, so requests
+ * that carry it never load the session from Redis.
+ *
+ * <p>Revocation is a Redis denylist (token ids on logout, plus a per-user "issued before"
+ * cutoff on password or account changes). It is only consulted, with one MGET, for
+ * {@link #isSensitive sensitive} requests: writes, admin calls and reads of the caller's own
+ * data. Public reads trust the signature until the token expires, so they cost no Redis round
+ * trip.
+ */
+@Component
+public class AuthTokenService {
+
+    public static final String REQUEST_ATTRIBUTE = AuthToken.class.getName();
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String REVOKED_TOKEN_PREFIX = "auth:revoked:token:";
+    private static final String REVOKED_USER_PREFIX = "auth:revoked:user:";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final boolean enabled;
+    private final SecretKeySpec key;
+    private final long ttlSeconds;
+    private final String cookieName;
+    private final boolean cookieSecure;
+    private final String cookieSameSite;
+    private final String cookieDomain;
+    private final boolean redisEnabled;
+    private final StringRedisTemplate redisTemplate;
+    private final ThreadLocal<Mac> macs;
+    // Used when Redis is off or unreachable; only covers revocations made on this instance.
+    // Entries are dropped once every token they can apply to has expired.
+    private final Cache<String, Boolean> localRevokedTokens;
+    private final Cache<Integer, Long> localRevokedUsers;
+
+    public AuthTokenService(
+            ObjectProvider<StringRedisTemplate> redisTemplateProvider,
+            @Value("${security.auth-token.enabled:false}") boolean enabled,
+            @Value("${security.auth-token.secret:}") String secret,
+            @Value("${security.auth-token.ttl-seconds:604800}") long ttlSeconds,
+            @Value("${security.auth-token.cookie-name:LYCORIS_AUTH}") String cookieName,
+            @Value("${server.servlet.session.cookie.secure:true}") boolean cookieSecure,
+            @Value("${server.servlet.session.cookie.same-site:none}") String cookieSameSite,
+            @Value("${server.servlet.session.cookie.domain:}") String cookieDomain,
+            @Value("${security.auth-token.redis-enabled:true}") boolean redisEnabled
+    ) {
+        if (enabled && (secret == null || secret.length() < 32)) {
+            throw new IllegalStateException("security.auth-token.secret must be at least 32 characters");
+        }
+        this.enabled = enabled;
+        this.key = enabled ? new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM) : null;
+        this.ttlSeconds = Math.max(60, ttlSeconds);
+        this.cookieName = cookieName;
+        this.cookieSecure = cookieSecure;
+        this.cookieSameSite = cookieSameSite;
+        this.cookieDomain = cookieDomain;
+        this.redisEnabled = redisEnabled;
+        this.redisTemplate = redisTemplateProvider.getIfAvailable();
+        this.localRevokedTokens = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(Duration.ofSeconds(this.ttlSeconds))
+                .build();
+        this.localRevokedUsers = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(Duration.ofSeconds(this.ttlSeconds))
+                .build();
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public record AuthToken(
+            Integer userId,
+            String publicId,
+            String role,
+            String username,
+            long issuedAt,  // epoch millis
+            long expiresAt, // epoch millis
+            String id
+    ) {
+    }
+
+    /** Sets the token cookie; no-op unless the mode is enabled. */
+    public void issue(HttpServletResponse response, Integer userId, String publicId, String role, String username) {
+        if (!enabled) return;
+        long now = System.currentTimeMillis();
+        String payload = userId + ":" + publicId + ":" + role + ":" + now + ":" + (now + ttlSeconds * 1000)
+                + ":" + UUID.randomUUID() + ":" + username;
+        String encoded = ENCODER.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+        writeCookie(response, encoded + "." + ENCODER.encodeToString(sign(encoded)), Duration.ofSeconds(ttlSeconds));
+    }
+
+    /** The request's token if its signature and expiry check out; null otherwise. */
+    public AuthToken read(HttpServletRequest request) {
+        if (!enabled) return null;
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) return null;
+        for (Cookie cookie : cookies) {
+            if (cookieName.equals(cookie.getName())) {
+                return verify(cookie.getValue());
+            }
+        }
+        return null;
+    }
+
+    /** Revokes the request's own token (logout) and clears the cookie. */
+    public void revoke(HttpServletRequest request, HttpServletResponse response) {
+        if (!enabled) return;
+        AuthToken token = read(request);
+        if (token != null) {
+            long remaining = (token.expiresAt() - System.currentTimeMillis()) / 1000 + 1;
+            localRevokedTokens.put(token.id(), Boolean.TRUE);
+            writeRedis(REVOKED_TOKEN_PREFIX + token.id(), "1", remaining);
+        }
+        writeCookie(response, "", Duration.ZERO);
+    }
+
+    /** Revokes every token issued to the user so far (password change, reset, deletion). */
+    public void revokeAllFor(Integer userId) {
+        if (!enabled || userId == null) return;
+        long now = System.currentTimeMillis();
+        localRevokedUsers.put(userId, now);
+        writeRedis(REVOKED_USER_PREFIX + userId, String.valueOf(now), ttlSeconds);
+    }
+
+    public boolean isRevoked(AuthToken token) {
+        Long localCutoff = localRevokedUsers.getIfPresent(token.userId());
+        if (localRevokedTokens.getIfPresent(token.id()) != null || (localCutoff != null && token.issuedAt() < localCutoff)) {
+            return true;
+        }
+        if (redisEnabled && redisTemplate != null) {
+            try {
+                List<String> values = redisTemplate.opsForValue().multiGet(List.of(
+                        REVOKED_TOKEN_PREFIX + token.id(),
+                        REVOKED_USER_PREFIX + token.userId()
+                ));
+                if (values != null) {
+                    if (values.get(0) != null) return true;
+                    String cutoff = values.get(1);
+                    return cutoff != null && token.issuedAt() < Long.parseLong(cutoff);
+                }
+            } catch (Exception e) {
+                System.out.println("AUTH_TOKEN_DENYLIST_UNAVAILABLE " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /** Writes, admin calls and private /me reads; public reads skip the denylist. */
+    public static boolean isSensitive(HttpServletRequest request) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method) && !"OPTIONS".equals(method)) return true;
+        String path = request.getRequestURI();
+        return path.startsWith("/api/admin")
+                || path.equals("/api/me")
+                || path.startsWith("/api/me/")
+                || path.startsWith("/api/markers/me/");
+    }
+
+    private AuthToken verify(String value) {
+        int dot = value == null ? -1 : value.indexOf('.');
+        if (dot <= 0) return null;
+        String encoded = value.substring(0, dot);
+        try {
+            if (!MessageDigest.isEqual(sign(encoded), DECODER.decode(value.substring(dot + 1)))) {
+                return null;
+            }
+            String[] parts = new String(DECODER.decode(encoded), StandardCharsets.UTF_8).split(":", 7);
+            if (parts.length != 7) return null;
+            AuthToken token = new AuthToken(
+                    Integer.valueOf(parts[0]),
+                    parts[1],
+                    parts[2],
+                    parts[6],
+                    Long.parseLong(parts[3]),
+                    Long.parseLong(parts[4]),
+                    parts[5]
+            );
+            return token.expiresAt() > System.currentTimeMillis() ? token : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private byte[] sign(String encodedPayload) {
+        return macs.get().doFinal(encodedPayload.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void writeRedis(String redisKey, String value, long ttl) {
+        if (!redisEnabled || redisTemplate == null || ttl <= 0) return;
+        try {
+            redisTemplate.opsForValue().set(redisKey, value, ttl, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.out.println("AUTH_TOKEN_REVOKE_FAILED " + e.getMessage());
+        }
+    }
+
+    private void writeCookie(HttpServletResponse response, String value, Duration maxAge) {
+        ResponseCookie.ResponseCookieBuilder cookie = ResponseCookie.from(cookieName, value)
+                .httpOnly(true)
+                .secure(cookieSecure)
+                .sameSite(cookieSameSite)
+                .path("/")
+                .maxAge(maxAge);
+        if (cookieDomain != null && !cookieDomain.isBlank()) {
+            cookie.domain(cookieDomain);
+        }
+        response.addHeader(HttpHeaders.SET_COOKIE, cookie.build().toString());
+    }
+}
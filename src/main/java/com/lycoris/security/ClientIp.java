@@ -0,0 +1,19 @@
+package com.lycoris.security;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Client address for throttling. With {@code server.forward-headers-strategy: native} Tomcat has
+ * already replaced the peer address with the rightmost X-Forwarded-For hop not added by a trusted
+ * proxy, so hops a client prepends itself are ignored. The header must not be read here: its
+ * leftmost value is whatever the client sent.
+ */
+public final class ClientIp {
+
+    private ClientIp() {
+    }
+
+    public static String resolve(HttpServletRequest request) {
+        return request.getRemoteAddr();
+    }
+}
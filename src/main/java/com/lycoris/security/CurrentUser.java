@@ -0,0 +1,13 @@
+package com.lycoris.security;
+
+/**
+ * The logged-in user as handlers need it: enough to authorize and attribute writes without
+ * loading the {@code User} row. Declare it as a controller parameter; it is null when the
+ * session has no live (non-deleted) user.
+ */
+public record CurrentUser(Integer id, String publicId, String username, String role, boolean deleted) {
+
+    public boolean isAdmin() {
+        return "ADMIN".equalsIgnoreCase(role);
+    }
+}
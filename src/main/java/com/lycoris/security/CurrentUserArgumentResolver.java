@@ -0,0 +1,66 @@
+package com.lycoris.security;
+
+import com.lycoris.service.UserService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpSession;
+import org.springframework.core.MethodParameter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.support.WebDataBinderFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.method.support.ModelAndViewContainer;
+
+/**
+ * Resolves {@link CurrentUser} handler parameters from the signed token's or else the session's
+ * userId, once per request (kept as a request attribute), through {@link UserService#principal}'s
+ * in-JVM cache.
+ */
+@Component
+public class CurrentUserArgumentResolver implements HandlerMethodArgumentResolver {
+
+    private static final String ATTRIBUTE = CurrentUser.class.getName();
+    private static final Object ANONYMOUS = new Object();
+
+    private final UserService userService;
+
+    public CurrentUserArgumentResolver(UserService userService) {
+        this.userService = userService;
+    }
+
+    @Override
+    public boolean supportsParameter(MethodParameter parameter) {
+        return parameter.getParameterType() == CurrentUser.class;
+    }
+
+    @Override
+    public Object resolveArgument(
+            MethodParameter parameter,
+            ModelAndViewContainer mavContainer,
+            NativeWebRequest webRequest,
+            WebDataBinderFactory binderFactory
+    ) {
+        HttpServletRequest request = webRequest.getNativeRequest(HttpServletRequest.class);
+        if (request == null) return null;
+        Object resolved = request.getAttribute(ATTRIBUTE);
+        if (resolved == null) {
+            resolved = resolve(request);
+            request.setAttribute(ATTRIBUTE, resolved == null ? ANONYMOUS : resolved);
+        }
+        return resolved == ANONYMOUS ? null : resolved;
+    }
+
+    private CurrentUser resolve(HttpServletRequest request) {
+        if (request.getAttribute(AuthTokenService.REQUEST_ATTRIBUTE) instanceof AuthTokenService.AuthToken token) {
+            return userService.principal(token.userId())
+                    .filter(user -> !user.deleted())
+                    .orElse(null);
+        }
+        HttpSession session = request.getSession(false);
+        if (session == null || !(session.getAttribute("userId") instanceof Integer userId)) {
+            return null;
+        }
+        return userService.principal(userId)
+                .filter(user -> !user.deleted())
+                .orElse(null);
+    }
+}
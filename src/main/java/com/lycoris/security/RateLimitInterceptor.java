@@ -0,0 +1,45 @@
+package com.lycoris.security;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lycoris.dto.ApiResponse;
+import com.lycoris.service.RateLimiter;
+import com.lycoris.service.RateLimiter.Decision;
+import com.lycoris.service.RateLimiter.Policy;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+/** Applies {@link RateLimited} to controller methods; a denied call gets 429 with Retry-After. */
+@Component
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private final RateLimiter rateLimiter;
+    private final ObjectMapper objectMapper;
+
+    public RateLimitInterceptor(RateLimiter rateLimiter, ObjectMapper objectMapper) {
+        this.rateLimiter = rateLimiter;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!(handler instanceof HandlerMethod method)) return true;
+        RateLimited limit = method.getMethodAnnotation(RateLimited.class);
+        if (limit == null || !rateLimiter.isEnabled()) return true;
+
+        Policy policy = rateLimiter.policy(limit.value(), limit.capacity(), limit.refillPerMinute());
+        Decision decision = rateLimiter.tryAcquire(policy, ClientIp.resolve(request));
+        if (decision.allowed()) return true;
+
+        response.setStatus(429);
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, (decision.retryAfterMillis() + 999) / 1000)));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+        objectMapper.writeValue(response.getWriter(), ApiResponse.error(429, "请求过于频繁，请稍后再试"));
+        return false;
+    }
+}
@@ -0,0 +1,25 @@
+package com.lycoris.security;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Puts a controller method behind a per-client-IP token bucket. The numbers here are defaults;
+ * {@code security.rate-limit.policies.<value>.capacity} / {@code .refill-per-minute} override
+ * them, and every method naming the same policy shares one bucket per client.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RateLimited {
+
+    /** Policy name, also part of the Redis key. */
+    String value();
+
+    /** Burst size. */
+    int capacity();
+
+    /** Sustained rate. */
+    int refillPerMinute();
+}
@@ -0,0 +1,56 @@
+package com.lycoris.security;
+
+import com.lycoris.security.AuthTokenService.AuthToken;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Authenticates from the signed token cookie before {@link SessionAuthFilter} runs. It sets a
+ * fresh security context instead of reading the current one, since reading it would load the
+ * session that this path exists to skip.
+ */
+public class TokenAuthFilter extends OncePerRequestFilter {
+
+    private final AuthTokenService tokens;
+
+    public TokenAuthFilter(AuthTokenService tokens) {
+        this.tokens = tokens;
+    }
+
+    @Override
+    protected void doFilterInternal(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            FilterChain filterChain
+    ) throws ServletException, IOException {
+        AuthToken token = tokens.read(request);
+        if (token != null && !(AuthTokenService.isSensitive(request) && tokens.isRevoked(token))) {
+            List<SimpleGrantedAuthority> authorities = new ArrayList<>();
+            authorities.add(new SimpleGrantedAuthority("ROLE_USER"));
+            if ("ADMIN".equalsIgnoreCase(token.role())) {
+                authorities.add(new SimpleGrantedAuthority("ROLE_ADMIN"));
+            }
+            UsernamePasswordAuthenticationToken auth =
+                    new UsernamePasswordAuthenticationToken(token.username(), null, authorities);
+            auth.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
+            SecurityContext context = SecurityContextHolder.createEmptyContext();
+            context.setAuthentication(auth);
+            SecurityContextHolder.setContext(context);
+            request.setAttribute(AuthTokenService.REQUEST_ATTRIBUTE, token);
+        }
+
+        filterChain.doFilter(request, response);
+    }
+}
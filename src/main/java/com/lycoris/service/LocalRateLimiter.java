@@ -0,0 +1,92 @@
+package com.lycoris.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.lycoris.service.RateLimiter.Decision;
+import com.lycoris.service.RateLimiter.Policy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for {@link RateLimiter}'s Redis buckets when Redis is off or failing.
+ * Each client is one {@link AtomicLong} (GCRA: the bucket's "theoretical arrival time"),
+ * updated with a CAS loop, so there are no locks and no per-request allocation. Keys live in a
+ * size-bounded Caffeine cache and expire once their bucket would be full again, so memory stays
+ * flat however many distinct IPs show up; a dropped key only means that client starts full.
+ */
+@Service
+public class LocalRateLimiter {
+
+    private static final long NANOS_PER_MINUTE = 60_000_000_000L;
+
+    private final Cache<String, Bucket> buckets;
+
+    public LocalRateLimiter(@Value("${security.rate-limit.local-max-keys:100000}") long maxKeys) {
+        this.buckets = Caffeine.newBuilder()
+                .maximumSize(Math.max(1, maxKeys))
+                .expireAfter(new Expiry<String, Bucket>() {
+                    @Override
+                    public long expireAfterCreate(String key, Bucket bucket, long currentTime) {
+                        return bucket.nanosUntilFull(currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Bucket bucket, long currentTime, long currentDuration) {
+                        return bucket.nanosUntilFull(currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Bucket bucket, long currentTime, long currentDuration) {
+                        return bucket.nanosUntilFull(currentTime);
+                    }
+                })
+                .build();
+    }
+
+    public Decision tryAcquire(Policy policy, String client) {
+        Bucket bucket = buckets.get(policy.name() + ":" + client, k -> new Bucket(policy));
+        return bucket.take(System.nanoTime());
+    }
+
+    // Expired entries are otherwise only dropped as a side effect of later cache traffic.
+    @Scheduled(fixedDelay = 60_000)
+    public void sweep() {
+        buckets.cleanUp();
+    }
+
+    static final class Bucket {
+        private final long emissionNanos;
+        private final long burstNanos;
+        private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+
+        Bucket(Policy policy) {
+            this.emissionNanos = Math.max(1, (long) (NANOS_PER_MINUTE / policy.refillPerMinute()));
+            this.burstNanos = emissionNanos * (policy.capacity() - 1L);
+        }
+
+        Decision take(long now) {
+            while (true) {
+                long current = arrival.get();
+                long tat = Math.max(current, now);
+                long ahead = tat - now - burstNanos;
+                if (ahead > 0) {
+                    return new Decision(false, (ahead + 999_999) / 1_000_000);
+                }
+                if (arrival.compareAndSet(current, tat + emissionNanos)) {
+                    return Decision.ALLOW;
+                }
+            }
+        }
+
+        // Past this point the bucket is full again, indistinguishable from a fresh one. Computed
+        // on the lookup that precedes a take, so it includes that take's emission interval.
+        // max() first: a fresh bucket's Long.MIN_VALUE minus now would overflow.
+        long nanosUntilFull(long now) {
+            return Math.max(arrival.get(), now) - now + emissionNanos;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.lycoris.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Failed-login counters per account and per client IP over a fixed window. Each attempt is
+ * counted before any password hashing and the decision is made on the returned counts, so a
+ * blocked account or IP costs no BCrypt work and parallel attempts cannot all slip through one
+ * check. A successful login hands its attempt back, as does one that ended before the password
+ * was checked (hashing pool busy, errors). Redis first (one Lua script, so a counter
+ * never exists without its expiry), falling back to an in-memory counter when Redis is
+ * unavailable.
+ */
+@Service
+public class LoginAttemptService {
+
+    private static final String ACCOUNT_PREFIX = "rl:login:account:";
+    private static final String IP_PREFIX = "rl:login:ip:";
+
+    // KEYS: counters; ARGV[1] window seconds, ARGV[i + 1] the limit of KEYS[i]. Returns how many
+    // counters are over their limit after incrementing. Also re-arms a missing TTL, so no counter
+    // can outlive its window.
+    private static final RedisScript<Long> COUNT_ATTEMPT = new DefaultRedisScript<>("""
+            local over = 0
+            for i, key in ipairs(KEYS) do
+                local count = redis.call('INCR', key)
+                if count == 1 or redis.call('TTL', key) < 0 then
+                    redis.call('EXPIRE', key, ARGV[1])
+                end
+                if count > tonumber(ARGV[i + 1]) then
+                    over = over + 1
+                end
+            end
+            return over
+            """, Long.class);
+
+    // KEYS: counters. DECR keeps the TTL; a counter that already expired is left alone.
+    private static final RedisScript<Long> REFUND_ATTEMPT = new DefaultRedisScript<>("""
+            for _, key in ipairs(KEYS) do
+                local count = tonumber(redis.call('GET', key))
+                if count and count > 0 then
+                    redis.call('DECR', key)
+                end
+            end
+            return 0
+            """, Long.class);
+
+    private final int maxAccountFailures;
+    private final int maxIpFailures;
+    private final long windowSeconds;
+    private final boolean redisEnabled;
+    private final StringRedisTemplate redisTemplate;
+    private final Cache<String, AtomicInteger> localFailures;
+
+    public LoginAttemptService(
+            ObjectProvider<StringRedisTemplate> redisTemplateProvider,
+            @Value("${security.login-throttle.redis-enabled:true}") boolean redisEnabled,
+            @Value("${security.login-throttle.max-account-failures:5}") int maxAccountFailures,
+            @Value("${security.login-throttle.max-ip-failures:20}") int maxIpFailures,
+            @Value("${security.login-throttle.window-seconds:900}") long windowSeconds
+    ) {
+        this.redisTemplate = redisTemplateProvider.getIfAvailable();
+        this.redisEnabled = redisEnabled;
+        this.maxAccountFailures = Math.max(1, maxAccountFailures);
+        this.maxIpFailures = Math.max(1, maxIpFailures);
+        this.windowSeconds = Math.max(1, windowSeconds);
+        this.localFailures = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(Duration.ofSeconds(this.windowSeconds))
+                .build();
+    }
+
+    /**
+     * Counts one attempt for the account and the IP; false when either is over its limit, in
+     * which case the password must not be checked. Every allowed attempt that fails stays
+     * counted; call {@link #recordSuccess} when it succeeds and {@link #refund} when it ends
+     * without the password having been judged.
+     */
+    public boolean tryAttempt(String account, String ip) {
+        List<String> keys = List.of(accountKey(account), ipKey(ip));
+        if (redisEnabled && redisTemplate != null) {
+            try {
+                Long over = redisTemplate.execute(
+                        COUNT_ATTEMPT,
+                        keys,
+                        String.valueOf(windowSeconds),
+                        String.valueOf(maxAccountFailures),
+                        String.valueOf(maxIpFailures)
+                );
+                if (over != null) {
+                    return over == 0;
+                }
+            } catch (Exception ignore) {
+                // Fallback to local-memory counters when Redis is unavailable.
+            }
+        }
+        return withinLimits(
+                localFailures.get(keys.get(0), k -> new AtomicInteger()).incrementAndGet(),
+                localFailures.get(keys.get(1), k -> new AtomicInteger()).incrementAndGet()
+        );
+    }
+
+    /** A correct password clears the account's counter and takes its attempt off the IP's. */
+    public void recordSuccess(String account, String ip) {
+        String key = accountKey(account);
+        String ipKey = ipKey(ip);
+        localFailures.invalidate(key);
+        AtomicInteger ipFailures = localFailures.getIfPresent(ipKey);
+        if (ipFailures != null) {
+            ipFailures.updateAndGet(count -> Math.max(0, count - 1));
+        }
+        if (redisEnabled && redisTemplate != null) {
+            try {
+                redisTemplate.delete(key);
+                redisTemplate.execute(REFUND_ATTEMPT, List.of(ipKey));
+            } catch (Exception ignore) {
+                // Expires with the window anyway.
+            }
+        }
+    }
+
+    /** Hands back an attempt that failed for reasons other than the credentials (busy, errors). */
+    public void refund(String account, String ip) {
+        List<String> keys = List.of(accountKey(account), ipKey(ip));
+        for (String key : keys) {
+            AtomicInteger failures = localFailures.getIfPresent(key);
+            if (failures != null) {
+                failures.updateAndGet(count -> Math.max(0, count - 1));
+            }
+        }
+        if (redisEnabled && redisTemplate != null) {
+            try {
+                redisTemplate.execute(REFUND_ATTEMPT, keys);
+            } catch (Exception ignore) {
+                // Expires with the window anyway.
+            }
+        }
+    }
+
+    private boolean withinLimits(long accountAttempts, long ipAttempts) {
+        return accountAttempts <= maxAccountFailures && ipAttempts <= maxIpFailures;
+    }
+
+    private static String accountKey(String account) {
+        String normalized = account == null ? "" : account.trim().toLowerCase(Locale.ROOT);
+        return ACCOUNT_PREFIX + normalized;
+    }
+
+    private static String ipKey(String ip) {
+        return IP_PREFIX + ((ip == null || ip.isBlank()) ? "unknown" : ip.trim());
+    }
+}
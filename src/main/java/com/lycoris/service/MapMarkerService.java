@@ -1,16 +1,33 @@
 package com.lycoris.service;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.lycoris.dto.MarkerChanges;
+import com.lycoris.dto.MarkerCluster;
 import com.lycoris.dto.MarkerCreateRequest;
+import com.lycoris.dto.MarkerPin;
+import com.lycoris.dto.NearestMarker;
 import com.lycoris.entity.MapMarker;
+import com.lycoris.entity.MarkerDeletion;
 import com.lycoris.repository.MapMarkerRepository;
-import org.springframework.beans.factory.ObjectProvider;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.lycoris.repository.MarkerDeletionRepository;
+import com.lycoris.repository.MarkerPinView;
+import jakarta.persistence.EntityManager;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
 import java.time.format.DateTimeParseException;
 import java.util.List;
 import java.util.LinkedHashMap;
@@ -18,49 +35,86 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.ArrayList;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.concurrent.TimeUnit;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 @Service
 public class MapMarkerService {
 
     private final MapMarkerRepository repo;
-    private final StringRedisTemplate redisTemplate;
+    private final MarkerDeletionRepository deletionRepo;
+    private final MarkerSpatialIndex spatialIndex;
+    private final MarkerDatasetVersion datasetVersion;
+    private final MarkerRegionVersions regionVersions;
+    private final MarkerOpenHours openHours;
+    private final MarkerCache cache;
+    private final MarkerChangeEvents changeEvents;
     private final ObjectMapper objectMapper;
-    private final boolean markerCacheRedisEnabled;
-    private final long nearbyCacheTtlSeconds;
-    private final long viewportCacheTtlSeconds;
+    private final ObjectWriter streamWriter;
+    private final EntityManager entityManager;
     private static final Set<String> SUPPORTED_CATEGORIES = Set.of(
             "accessible_toilet",
             "friendly_clinic",
             "conversion_therapy",
             "self_definition"
     );
+    private static final String SUPPORTED_CATEGORIES_CSV = String.join(",", SUPPORTED_CATEGORIES);
     private static final Set<String> LEGACY_TO_SELF_DEFINITION = Set.of(
             "safe_place",
             "dangerous_place"
     );
-    private static final TypeReference<List<MapMarker>> MARKER_LIST_TYPE = new TypeReference<>() {};
-    private static final String NEARBY_CACHE_PREFIX = "cache:marker:nearby:v1:";
-    private static final String VIEWPORT_CACHE_PREFIX = "cache:marker:viewport:v1:";
+    // Must match the extent/buffer passed to ST_AsMVTGeom so buffered edge points are fetched.
+    static final double VECTOR_TILE_BUFFER_RATIO = 64.0 / 4096.0;
+    private static final int VIEWPORT_MAX_TILES = 16;
+    // Widen tile bounds slightly so markers exactly on a tile edge are never lost to rounding.
+    private static final double TILE_EDGE_EPSILON = 1e-9;
+    private static final int CHANGES_MAX_LIMIT = 500;
+    private static final int SEARCH_LIMIT = 50;
+    private static final int NEAREST_MAX_K = 50;
+    // Nearest results reaching past this are neither cached nor given a regional ETag.
+    private static final int NEAREST_REGION_METERS = 20_000;
+    // Covers the key's rounding of the request point.
+    private static final int NEAREST_REGION_SLACK_METERS = 50;
+    private static final int PINS_BY_ID_LIMIT = 200;
+    static final double EARTH_RADIUS_METERS = 6_371_008.8;
+    private static final int SEARCH_BACKFILL_BATCH = 500;
+    // Rows younger than this may still belong to uncommitted transactions with an earlier updatedAt.
+    private static final long CHANGES_SAFETY_LAG_SECONDS = 2;
 
     public MapMarkerService(
             MapMarkerRepository repo,
-            ObjectProvider<StringRedisTemplate> redisTemplateProvider,
+            MarkerDeletionRepository deletionRepo,
+            MarkerSpatialIndex spatialIndex,
+            MarkerDatasetVersion datasetVersion,
+            MarkerRegionVersions regionVersions,
+            MarkerOpenHours openHours,
+            MarkerCache cache,
+            MarkerChangeEvents changeEvents,
             ObjectMapper objectMapper,
-            @Value("${cache.marker.redis-enabled:true}") boolean markerCacheRedisEnabled,
-            @Value("${cache.marker.nearby-ttl-seconds:12}") long nearbyCacheTtlSeconds,
-            @Value("${cache.marker.viewport-ttl-seconds:10}") long viewportCacheTtlSeconds
+            EntityManager entityManager
     ) {
         this.repo = repo;
-        this.redisTemplate = redisTemplateProvider.getIfAvailable();
+        this.deletionRepo = deletionRepo;
+        this.spatialIndex = spatialIndex;
+        this.datasetVersion = datasetVersion;
+        this.regionVersions = regionVersions;
+        this.openHours = openHours;
+        this.cache = cache;
+        this.changeEvents = changeEvents;
         this.objectMapper = objectMapper;
-        this.markerCacheRedisEnabled = markerCacheRedisEnabled;
-        this.nearbyCacheTtlSeconds = Math.max(1, nearbyCacheTtlSeconds);
-        this.viewportCacheTtlSeconds = Math.max(1, viewportCacheTtlSeconds);
+        // Flushing after every element would turn a streamed export into one write per row.
+        this.streamWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.entityManager = entityManager;
     }
-
+
     public MapMarker create(String username, String userPublicId, MarkerCreateRequest req) {
         MapMarker m = new MapMarker();
         m.setLat(req.getLat());
@@ -70,7 +124,7 @@ public class MapMarkerService {
         m.setDescription(req.getDescription());
         m.setIsPublic(req.getIsPublic() != null ? req.getIsPublic() : true);
         m.setIsActive(req.getIsActive() != null ? req.getIsActive() : true);
-        applyOpenTimeWindow(m, req.getOpenTimeStart(), req.getOpenTimeEnd());
+        applyOpenHours(m, req.getOpenTimeStart(), req.getOpenTimeEnd(), req.getOpenHours(), req.getOpenTimezone());
         m.setMarkImage(req.getMarkImage());
         m.setUsername(username);
         m.setUserPublicId(userPublicId);
@@ -79,77 +133,274 @@ public class MapMarkerService {
         m.setLastEditedByPublicId(userPublicId);
         m.setLastEditedByOwner(true);
         applyAvailabilityStatus(m);
+        applySearchTerms(m);
+
+        MapMarker saved = repo.save(m);
+        afterCommit(() -> spatialIndex.upsert(saved));
+        return saved;
+    }
 
-        return repo.save(m);
+    /**
+     * Writes the public pin list as a JSON array straight to {@code out}, one pin at a time,
+     * without building the response in memory first.
+     */
+    public void writePublicActive(OutputStream out) throws IOException {
+        try (JsonGenerator gen = objectMapper.getFactory().createGenerator(out)) {
+            gen.writeStartArray();
+            for (MarkerPin pin : spatialIndex.all()) {
+                streamWriter.writeValue(gen, normalizePinForRead(pin));
+            }
+            gen.writeEndArray();
+        }
     }
 
-    public List<MapMarker> listPublicActive() {
-        return normalizeForRead(repo.findByIsPublicTrueAndReviewStatus("APPROVED"));
+    public Optional<MapMarker> findPublicById(Long id) {
+        return repo.findById(id)
+                .filter(m -> Boolean.TRUE.equals(m.getIsPublic()) && "APPROVED".equals(m.getReviewStatus()))
+                .map(this::normalizeOneForRead);
     }
 
-    public List<MapMarker> searchPublicActive(String q) {
+    public List<MarkerPin> searchPublicActive(String q) {
         String query = q == null ? "" : q.trim();
         if (query.isEmpty()) return List.of();
-        Map<Long, MapMarker> merged = new LinkedHashMap<>();
-        for (MapMarker m : repo.searchPublicActive(query)) {
-            merged.put(m.getId(), m);
+        Map<Long, MarkerPin> merged = new LinkedHashMap<>();
+        String tsQuery = MarkerSearchTokenizer.toTsQuery(query);
+        if (tsQuery != null) {
+            for (MarkerPinView v : repo.searchPublicActive(tsQuery, SEARCH_LIMIT)) {
+                merged.put(v.getId(), toPin(v));
+            }
         }
         Optional<double[]> coords = parseLatLng(query);
         if (coords.isPresent()) {
             double[] c = coords.get();
-            for (MapMarker m : repo.findByLatLngNear(c[0], c[1], 0.00015)) {
+            for (MarkerPin m : repo.findByLatLngNear(c[0], c[1], 0.00015)) {
                 merged.put(m.getId(), m);
             }
         }
-        return normalizeForRead(merged.values().stream().toList());
+        return normalizePinsForRead(merged.values().stream().toList());
+    }
+
+    public List<MarkerPin> nearbyPublicActive(double lat, double lng, int radiusMeters, String category, boolean openNow) {
+        return nearbyPins(lat, lng, radiusMeters, List.of(normalizeCategoryForWrite(category)), openNow);
+    }
+
+    /**
+     * Nearby markers of several categories from one query, grouped by category (every requested
+     * category is present, in sorted order; each list is nearest first).
+     */
+    public Map<String, List<MarkerPin>> nearbyPublicActiveByCategory(
+            double lat,
+            double lng,
+            int radiusMeters,
+            List<String> categories,
+            boolean openNow
+    ) {
+        List<String> sorted = sortedCategories(categories);
+        Map<String, List<MarkerPin>> grouped = new LinkedHashMap<>();
+        for (String category : sorted) {
+            grouped.put(category, new ArrayList<>());
+        }
+        for (MarkerPin pin : nearbyPins(lat, lng, radiusMeters, sorted, openNow)) {
+            grouped.computeIfAbsent(pin.getCategory(), c -> new ArrayList<>()).add(pin);
+        }
+        return grouped;
+    }
+
+    /** Normalized, distinct and sorted: the canonical form used in nearby cache keys. */
+    List<String> sortedCategories(List<String> categories) {
+        Set<String> normalized = normalizeCategorySet(categories);
+        if (normalized == null) {
+            throw new IllegalArgumentException("categories 不能为空");
+        }
+        return normalized.stream().sorted().toList();
+    }
+
+    /** The cache key a nearby read of these (sorted) categories looks up. */
+    String nearbyCacheKey(double lat, double lng, int radiusMeters, List<String> sortedCategories, boolean openNow) {
+        return cache.nearbyKey(lat, lng, safeRadius(radiusMeters), String.join(",", sortedCategories), openNow);
     }
 
-    public List<MapMarker> nearbyPublicActive(double lat, double lng, int radiusMeters, String category) {
+    private List<MarkerPin> nearbyPins(double lat, double lng, int radiusMeters, List<String> sortedCategories, boolean openNow) {
+        int safeRadius = safeRadius(radiusMeters);
+        String cacheKey = nearbyCacheKey(lat, lng, safeRadius, sortedCategories, openNow);
+        return normalizePinsForRead(cache.nearby(cacheKey, () ->
+                repo.findNearbyByCategory(lat, lng, safeRadius, sortedCategories, openNow, ZoneId.systemDefault().getId()).stream().map(this::toPin).toList()
+        ));
+    }
+
+    private static int safeRadius(int radiusMeters) {
+        return Math.max(1, Math.min(radiusMeters, 50000));
+    }
+
+    /**
+     * The k listed markers closest to the point, nearest first, with their distance from it.
+     */
+    public List<NearestMarker> nearestPublicActive(double lat, double lng, int k, String category, boolean openNow) {
         String normalizedCategory = normalizeCategoryForWrite(category);
-        int safeRadius = Math.max(1, Math.min(radiusMeters, 50000));
-        String cacheKey = buildNearbyCacheKey(lat, lng, safeRadius, normalizedCategory);
-        List<MapMarker> cached = readMarkerListFromCache(cacheKey);
-        if (cached != null) {
-            return normalizeForRead(cached);
+        int safeK = Math.max(1, Math.min(k, NEAREST_MAX_K));
+        String cacheKey = cache.nearestKey(lat, lng, NEAREST_REGION_METERS, safeK, normalizedCategory, openNow);
+        AtomicReference<List<MarkerPin>> uncached = new AtomicReference<>();
+        List<MarkerPin> found = cache.nearby(cacheKey, () -> {
+            List<MarkerPin> computed = repo.findNearest(lat, lng, safeK, normalizedCategory, openNow, ZoneId.systemDefault().getId())
+                    .stream().map(this::toPin).toList();
+            // A change outside the key's regions could still alter a result that reaches past them.
+            if (withinNearestRegion(lat, lng, computed, safeK)) return computed;
+            uncached.set(computed);
+            return null;
+        });
+        if (found == null) {
+            found = uncached.get() != null
+                    ? uncached.get()
+                    : repo.findNearest(lat, lng, safeK, normalizedCategory, openNow, ZoneId.systemDefault().getId()).stream().map(this::toPin).toList();
         }
-        List<MapMarker> computed = normalizeForRead(repo.findNearbyByCategory(lat, lng, safeRadius, normalizedCategory));
-        writeMarkerListToCache(cacheKey, computed, nearbyCacheTtlSeconds);
-        return computed;
+        List<MarkerPin> pins = normalizePinsForRead(found);
+        // Measured from the exact request point: the cache key rounds it (about 10 m).
+        return pins.stream()
+                .map(pin -> new NearestMarker(pin, Math.round(distanceMeters(lat, lng, pin.getLat(), pin.getLng()))))
+                .sorted(Comparator.comparingLong(NearestMarker::getDistanceMeters))
+                .toList();
     }
 
-    public List<MapMarker> listPublicActiveInBounds(
+    /** True if all {@code k} nearest pins lie inside the regions a nearest read is keyed on. */
+    private static boolean withinNearestRegion(double lat, double lng, List<MarkerPin> pins, int k) {
+        if (pins.size() < k) return false;
+        double limit = NEAREST_REGION_METERS - NEAREST_REGION_SLACK_METERS;
+        return pins.stream().allMatch(pin -> distanceMeters(lat, lng, pin.getLat(), pin.getLng()) <= limit);
+    }
+
+    public List<MarkerPin> listPublicActiveInBounds(
             double minLat,
             double maxLat,
             double minLng,
             double maxLng,
-            List<String> categories
+            List<String> categories,
+            boolean openNow
     ) {
+        Set<String> normalized = normalizeCategorySet(categories);
+        List<MapTile> tiles = viewportTiles(minLat, maxLat, minLng, maxLng);
+        List<String> keys = tiles.stream().map(cache::tileKey).toList();
+        List<List<MarkerPin>> tileResults = cache.tiles(keys, i -> {
+            MapTile tile = tiles.get(i);
+            return spatialIndex.query(
+                    tile.minLat() - TILE_EDGE_EPSILON,
+                    tile.maxLat() + TILE_EDGE_EPSILON,
+                    tile.minLng() - TILE_EDGE_EPSILON,
+                    tile.maxLng() + TILE_EDGE_EPSILON,
+                    null
+            );
+        });
+
+        Map<Long, MarkerPin> merged = new LinkedHashMap<>();
+        for (List<MarkerPin> tileMarkers : tileResults) {
+            for (MarkerPin m : normalizePinsForRead(tileMarkers)) {
+                if (m.getLat() < minLat || m.getLat() > maxLat || m.getLng() < minLng || m.getLng() > maxLng) continue;
+                if (normalized != null && !normalized.contains(m.getCategory())) continue;
+                if (openNow && !Boolean.TRUE.equals(m.getIsActive())) continue;
+                merged.put(m.getId(), m);
+            }
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    /** The tile cache keys a viewport read looks up. */
+    List<String> viewportCacheKeys(double minLat, double maxLat, double minLng, double maxLng) {
+        return viewportTiles(minLat, maxLat, minLng, maxLng).stream().map(cache::tileKey).toList();
+    }
+
+    // Quantize to fixed slippy tiles so overlapping viewports share cache entries.
+    private static List<MapTile> viewportTiles(double minLat, double maxLat, double minLng, double maxLng) {
+        checkBounds(minLat, maxLat, minLng, maxLng);
+        int zoom = MapTile.zoomFor(minLat, maxLat, minLng, maxLng, MarkerCache.TILE_MAX_ZOOM, VIEWPORT_MAX_TILES);
+        return MapTile.covering(minLat, maxLat, minLng, maxLng, zoom);
+    }
+
+    private static void checkBounds(double minLat, double maxLat, double minLng, double maxLng) {
         if (minLat > maxLat || minLng > maxLng) {
             throw new IllegalArgumentException("边界参数不合法");
         }
         if (minLat < -90 || maxLat > 90 || minLng < -180 || maxLng > 180) {
             throw new IllegalArgumentException("边界超出合法经纬度范围");
         }
+    }
 
-        String cacheKey = buildViewportCacheKey(minLat, maxLat, minLng, maxLng, categories);
-        List<MapMarker> cached = readMarkerListFromCache(cacheKey);
-        if (cached != null) {
-            return normalizeForRead(cached);
+    /**
+     * Rejects a viewport read the way {@link #listPublicActiveInBounds} and
+     * {@link #clusterPublicActiveInBounds} would, so callers can do it before answering 304.
+     */
+    public void checkViewport(double minLat, double maxLat, double minLng, double maxLng, List<String> categories, Integer zoom) {
+        checkBounds(minLat, maxLat, minLng, maxLng);
+        normalizeCategorySet(categories);
+        if (zoom != null && zoom < 0) {
+            throw new IllegalArgumentException("zoom 不合法");
         }
+    }
 
-        List<MapMarker> result;
-        if (categories == null || categories.isEmpty()) {
-            result = repo.findPublicActiveInBounds(minLat, maxLat, minLng, maxLng);
+    /** Same as {@link #checkViewport} for a nearby read of one category or, if given, several. */
+    public void checkNearby(String category, List<String> categories) {
+        if (categories != null) {
+            sortedCategories(categories);
         } else {
-            List<String> normalized = new ArrayList<>();
-            for (String category : categories) {
-                normalized.add(normalizeCategoryForWrite(category));
-            }
-            result = repo.findPublicActiveInBoundsAndCategoryIn(minLat, maxLat, minLng, maxLng, normalized);
+            normalizeCategoryForWrite(category);
         }
-        List<MapMarker> computed = normalizeForRead(result);
-        writeMarkerListToCache(cacheKey, computed, viewportCacheTtlSeconds);
-        return computed;
+    }
+
+    /** Listed pins for the given ids, in request order; unknown or unlisted ids are skipped. */
+    public List<MarkerPin> listPublicPins(List<Long> ids) {
+        if (ids == null || ids.isEmpty()) return List.of();
+        if (ids.size() > PINS_BY_ID_LIMIT) {
+            throw new IllegalArgumentException("ids 最多 " + PINS_BY_ID_LIMIT + " 个");
+        }
+        return normalizePinsForRead(spatialIndex.pins(ids));
+    }
+
+    public boolean shouldCluster(Integer zoom) {
+        return zoom != null && zoom <= spatialIndex.clusterMaxZoom();
+    }
+
+    public List<MarkerCluster> clusterPublicActiveInBounds(
+            double minLat,
+            double maxLat,
+            double minLng,
+            double maxLng,
+            List<String> categories,
+            int zoom,
+            boolean openNow
+    ) {
+        checkBounds(minLat, maxLat, minLng, maxLng);
+        if (zoom < 0) {
+            throw new IllegalArgumentException("zoom 不合法");
+        }
+        return spatialIndex.clusters(zoom, minLat, maxLat, minLng, maxLng, normalizeCategorySet(categories), openNow);
+    }
+
+    public byte[] vectorTile(int z, int x, int y, List<String> categories) {
+        MapTile tile = new MapTile(z, x, y);
+        if (!tile.isValid()) {
+            throw new IllegalArgumentException("瓦片坐标不合法");
+        }
+        List<String> normalized = categories == null || categories.isEmpty()
+                ? null
+                : categories.stream()
+                        .map(this::normalizeCategoryForWrite)
+                        .distinct()
+                        .sorted()
+                        .toList();
+        return cache.vectorTile(cache.vectorTileKey(tile, VECTOR_TILE_BUFFER_RATIO, normalized), () -> buildVectorTile(tile, normalized));
+    }
+
+    private byte[] buildVectorTile(MapTile tile, List<String> normalized) {
+        double latPad = (tile.maxLat() - tile.minLat()) * VECTOR_TILE_BUFFER_RATIO;
+        double lngPad = (tile.maxLng() - tile.minLng()) * VECTOR_TILE_BUFFER_RATIO;
+        double minLat = tile.minLat() - latPad;
+        double maxLat = tile.maxLat() + latPad;
+        double minLng = tile.minLng() - lngPad;
+        double maxLng = tile.maxLng() + lngPad;
+        byte[] computed = repo.buildVectorTile(
+                tile.z(), tile.x(), tile.y(), minLat, maxLat, minLng, maxLng,
+                SUPPORTED_CATEGORIES_CSV,
+                normalized == null ? "" : String.join(",", normalized)
+        );
+        return computed == null ? new byte[0] : computed;
     }
 
     public List<MapMarker> listByUserPublicId(String userPublicId) {
@@ -164,17 +415,164 @@ public class MapMarkerService {
         return normalizeForRead(repo.findAll());
     }
 
+    /**
+     * Streams every marker as a JSON array from a DB cursor. Each row is detached once written,
+     * so the persistence context (and heap) stays flat regardless of table size.
+     */
+    @Transactional(readOnly = true)
+    public void writeAll(OutputStream out) throws IOException {
+        try (Stream<MapMarker> rows = repo.streamAll();
+             JsonGenerator gen = objectMapper.getFactory().createGenerator(out)) {
+            gen.writeStartArray();
+            Iterator<MapMarker> it = rows.iterator();
+            while (it.hasNext()) {
+                MapMarker marker = it.next();
+                streamWriter.writeValue(gen, normalizeOneForRead(marker));
+                entityManager.detach(marker);
+            }
+            gen.writeEndArray();
+        }
+    }
+
     public java.util.Optional<MapMarker> findById(Long id) {
         return repo.findById(id).map(this::normalizeOneForRead);
     }
 
+    @Transactional
     public MapMarker save(MapMarker marker) {
         applyAvailabilityStatus(marker);
-        return repo.save(marker);
+        applySearchTerms(marker);
+        MapMarker saved = repo.save(marker);
+        // Covers admin approve/reject/edit and proposal approval, which all save through here.
+        afterCommit(() -> {
+            MarkerPin previous = spatialIndex.upsert(saved);
+            MarkerPin current = publicPinOf(saved);
+            cache.markerChanged(previous, current);
+            regionVersions.bump(Arrays.asList(previous, current));
+            datasetVersion.bump();
+            changeEvents.publishUpsert(saved.getId());
+        });
+        return saved;
     }
 
+    // The tombstone must commit with the delete, or /changes clients never learn of it.
+    @Transactional
     public void delete(MapMarker marker) {
         repo.delete(marker);
+        MarkerDeletion deletion = new MarkerDeletion();
+        deletion.setMarkerId(marker.getId());
+        deletionRepo.save(deletion);
+        Long id = marker.getId();
+        afterCommit(() -> {
+            MarkerPin previous = spatialIndex.remove(id);
+            if (previous == null) previous = publicPinOf(marker);
+            cache.markerChanged(previous, null);
+            regionVersions.bump(Collections.singletonList(previous));
+            datasetVersion.bump();
+            changeEvents.publishRemove(id);
+        });
+    }
+
+    /**
+     * Weak ETag for the full public listing: dataset version + the request's query.
+     * Open-time flips bump the dataset version, so no time component is needed.
+     */
+    public String datasetETag(String query) {
+        return weakETag(datasetVersion.current(), query);
+    }
+
+    /**
+     * Weak ETag for a listing confined to the bounds: versions of the regions covering them +
+     * the request's query. Changes (and open-time flips) elsewhere leave it unchanged.
+     */
+    public String regionETag(String query, double minLat, double maxLat, double minLng, double maxLng) {
+        return weakETag(regionVersions.stamp(minLat, maxLat, minLng, maxLng, MapTile.MAX_ZOOM), query);
+    }
+
+    /** {@link #regionETag(String, double, double, double, double)} for a nearby circle. */
+    public String nearbyETag(String query, double lat, double lng, int radiusMeters) {
+        return weakETag(regionVersions.stamp(lat, lng, safeRadius(radiusMeters)), query);
+    }
+
+    /**
+     * The two ETags a nearest response may carry, both stamped before the read: {@code region}
+     * holds when the result lies inside the regions nearest reads are keyed on, {@code world}
+     * (every region) otherwise; {@link #nearestETag} picks one once the result is known.
+     */
+    public NearestETags nearestETags(String query, double lat, double lng) {
+        return new NearestETags(
+                weakETag(regionVersions.stamp(lat, lng, NEAREST_REGION_METERS), query),
+                regionETag(query, -90, 90, -180, 180)
+        );
+    }
+
+    public String nearestETag(NearestETags etags, double lat, double lng, int k, List<NearestMarker> nearest) {
+        int safeK = Math.max(1, Math.min(k, NEAREST_MAX_K));
+        return withinNearestRegion(lat, lng, nearest.stream().map(NearestMarker::getMarker).toList(), safeK)
+                ? etags.region()
+                : etags.world();
+    }
+
+    public record NearestETags(String region, String world) {
+    }
+
+    private static String weakETag(String version, String query) {
+        CRC32 crc = new CRC32();
+        crc.update(query.getBytes(StandardCharsets.UTF_8));
+        return "W/\"" + version + "-" + Long.toHexString(crc.getValue()) + "\"";
+    }
+
+    /**
+     * Delta sync: markers changed after the cursor, keyset-paginated on (updatedAt, id), plus
+     * tombstones for markers deleted in the same time span or no longer publicly visible.
+     */
+    public MarkerChanges changesSince(String cursor, int limit) {
+        int safeLimit = Math.max(1, Math.min(limit, CHANGES_MAX_LIMIT));
+        Instant since = Instant.EPOCH;
+        long sinceId = 0;
+        if (cursor != null && !cursor.isBlank()) {
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8);
+                String[] parts = decoded.split(":");
+                since = Instant.EPOCH.plus(Long.parseLong(parts[0]), ChronoUnit.MICROS);
+                sinceId = Long.parseLong(parts[1]);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("cursor 不合法");
+            }
+        }
+        Instant upTo = Instant.now().minusSeconds(CHANGES_SAFETY_LAG_SECONDS).truncatedTo(ChronoUnit.MICROS);
+
+        List<MapMarker> rows = repo.findChangedSince(since, sinceId, upTo, PageRequest.of(0, safeLimit + 1));
+        boolean hasMore = rows.size() > safeLimit;
+        if (hasMore) {
+            rows = rows.subList(0, safeLimit);
+        }
+        Instant nextSince = upTo;
+        long nextSinceId = Long.MAX_VALUE;
+        if (hasMore) {
+            MapMarker last = rows.get(rows.size() - 1);
+            nextSince = last.getUpdatedAt();
+            nextSinceId = last.getId();
+        }
+
+        List<MarkerPin> upserted = new ArrayList<>();
+        List<Long> removed = new ArrayList<>();
+        for (MapMarker m : rows) {
+            if (Boolean.TRUE.equals(m.getIsPublic()) && "APPROVED".equals(m.getReviewStatus())) {
+                upserted.add(MarkerPin.from(normalizeOneForRead(m)));
+            } else {
+                removed.add(m.getId());
+            }
+        }
+        if (nextSince.isAfter(since)) {
+            for (MarkerDeletion d : deletionRepo.findByDeletedAtGreaterThanAndDeletedAtLessThanEqualOrderByDeletedAtAsc(since, nextSince)) {
+                removed.add(d.getMarkerId());
+            }
+        }
+        String nextCursor = Base64.getUrlEncoder().withoutPadding().encodeToString(
+                (ChronoUnit.MICROS.between(Instant.EPOCH, nextSince) + ":" + nextSinceId).getBytes(StandardCharsets.UTF_8)
+        );
+        return new MarkerChanges(upserted, removed, nextCursor, hasMore);
     }
 
     public List<MapMarker> listPendingReview() {
@@ -193,36 +591,102 @@ public class MapMarkerService {
         }
     }
 
+    // Write-time only: after this, MarkerOpenHours keeps the stored isActive in step with the hours.
     public void applyAvailabilityStatus(MapMarker marker) {
-        if (marker == null) return;
-        String startRaw = marker.getOpenTimeStart();
-        String endRaw = marker.getOpenTimeEnd();
-        if (startRaw == null || endRaw == null || startRaw.isBlank() || endRaw.isBlank()) {
-            return;
+        if (marker == null || marker.getOpenWeekBounds() == null) return;
+        marker.setIsActive(openHours.isOpenNow(OpenSchedule.decode(marker.getOpenWeekBounds(), marker.getOpenTimezone())));
+    }
+
+    /**
+     * Compiles opening hours for rows saved before open_week_bounds existed.
+     * Returns the number of rows updated.
+     */
+    public int backfillOpenHours() {
+        int compiled = 0;
+        long afterId = 0;
+        while (true) {
+            List<Long> ids = repo.findIdsMissingOpenSchedule(afterId, PageRequest.of(0, SEARCH_BACKFILL_BATCH));
+            if (ids.isEmpty()) return compiled;
+            for (MapMarker m : repo.findByIdIn(ids)) {
+                try {
+                    OpenSchedule schedule = compileOpenHours(m);
+                    if (schedule == null) continue;
+                    repo.updateOpenSchedule(m.getId(), schedule.bounds(), openHours.isOpenNow(schedule));
+                    compiled++;
+                } catch (IllegalArgumentException | DateTimeParseException e) {
+                    System.out.println("OPEN_HOURS_BACKFILL_SKIPPED id=" + m.getId() + " " + e.getMessage());
+                }
+            }
+            afterId = ids.get(ids.size() - 1);
         }
-        LocalTime now = LocalTime.now();
-        LocalTime start = LocalTime.parse(startRaw);
-        LocalTime end = LocalTime.parse(endRaw);
-        boolean activeNow;
-        if (start.equals(end)) {
-            activeNow = true;
-        } else if (start.isBefore(end)) {
-            activeNow = !now.isBefore(start) && now.isBefore(end);
-        } else {
-            activeNow = !now.isBefore(start) || now.isBefore(end);
+    }
+
+    /**
+     * Fills search_terms for rows saved before the column existed. Returns the number of rows updated.
+     */
+    public int backfillSearchTerms() {
+        int filled = 0;
+        while (true) {
+            List<Long> ids = repo.findIdsMissingSearchTerms(PageRequest.of(0, SEARCH_BACKFILL_BATCH));
+            if (ids.isEmpty()) return filled;
+            for (MapMarker m : repo.findByIdIn(ids)) {
+                repo.updateSearchTerms(m.getId(), searchTermsOf(m));
+                filled++;
+            }
         }
-        marker.setIsActive(activeNow);
     }
 
-    public void applyOpenTimeWindow(MapMarker marker, String start, String end) {
+    private void applySearchTerms(MapMarker marker) {
+        marker.setSearchTerms(searchTermsOf(marker));
+    }
+
+    private static String searchTermsOf(MapMarker marker) {
+        String category = marker.getCategory() == null ? null : marker.getCategory().replace('_', ' ');
+        return MarkerSearchTokenizer.indexTerms(marker.getTitle(), marker.getDescription(), category);
+    }
+
+    public String normalizeOpenHours(String weekly) {
+        return OpenSchedule.normalizeSpec(weekly);
+    }
+
+    public String normalizeOpenTimezone(String timezone) {
+        return timezone == null || timezone.isBlank() ? null : OpenSchedule.parseZone(timezone).getId();
+    }
+
+    /**
+     * Sets and compiles opening hours. A weekly spec takes precedence over the daily start/end pair;
+     * timezone applies to either (null = server zone).
+     */
+    public void applyOpenHours(MapMarker marker, String start, String end, String weekly, String timezone) {
         if (marker == null) return;
         String normalizedStart = normalizeOpenTime(start);
         String normalizedEnd = normalizeOpenTime(end);
         if ((normalizedStart == null) != (normalizedEnd == null)) {
             throw new IllegalArgumentException("请同时填写开始和结束时间，或都留空");
         }
-        marker.setOpenTimeStart(normalizedStart);
-        marker.setOpenTimeEnd(normalizedEnd);
+        String normalizedWeekly = normalizeOpenHours(weekly);
+        String normalizedZone = normalizeOpenTimezone(timezone);
+        marker.setOpenTimeStart(normalizedWeekly == null ? normalizedStart : null);
+        marker.setOpenTimeEnd(normalizedWeekly == null ? normalizedEnd : null);
+        marker.setOpenHours(normalizedWeekly);
+        marker.setOpenTimezone(normalizedZone);
+        OpenSchedule schedule = compileOpenHours(marker);
+        marker.setOpenWeekBounds(schedule == null ? null : schedule.bounds());
+    }
+
+    private static OpenSchedule compileOpenHours(MapMarker marker) {
+        ZoneId zone = OpenSchedule.parseZone(marker.getOpenTimezone());
+        if (marker.getOpenHours() != null) {
+            return OpenSchedule.weekly(marker.getOpenHours(), zone);
+        }
+        if (marker.getOpenTimeStart() != null && marker.getOpenTimeEnd() != null) {
+            return OpenSchedule.daily(
+                    LocalTime.parse(marker.getOpenTimeStart()).toSecondOfDay() / 60,
+                    LocalTime.parse(marker.getOpenTimeEnd()).toSecondOfDay() / 60,
+                    zone
+            );
+        }
+        return null;
     }
 
     public String normalizeCategoryForWrite(String category) {
@@ -239,23 +703,86 @@ public class MapMarkerService {
         throw new IllegalArgumentException("不支持的 category：" + category + "，仅支持：" + String.join(", ", SUPPORTED_CATEGORIES));
     }
 
+    static String normalizeCategoryForRead(String category) {
+        String normalized = category == null ? "" : category.trim().toLowerCase(Locale.ROOT);
+        return SUPPORTED_CATEGORIES.contains(normalized) ? normalized : "self_definition";
+    }
+
+    /** The pin itself if its category is already in read form, otherwise a normalized copy. */
+    static MarkerPin normalizePinForRead(MarkerPin pin) {
+        String category = normalizeCategoryForRead(pin.getCategory());
+        return category.equals(pin.getCategory()) ? pin : pin.withCategory(category);
+    }
+
+    private Set<String> normalizeCategorySet(List<String> categories) {
+        if (categories == null || categories.isEmpty()) return null;
+        Set<String> normalized = new HashSet<>();
+        for (String category : categories) {
+            normalized.add(normalizeCategoryForWrite(category));
+        }
+        return normalized;
+    }
+
+    private List<MarkerPin> normalizePinsForRead(List<MarkerPin> pins) {
+        return pins.stream().map(MapMarkerService::normalizePinForRead).toList();
+    }
+
+    // Great-circle (haversine) distance; within 0.5% of PostGIS' spheroid distance.
+    private static double distanceMeters(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    // The pin public listings show for this marker, or null if it is not listed.
+    static MarkerPin publicPinOf(MapMarker marker) {
+        if (!MarkerSpatialIndex.isIndexable(marker)) return null;
+        return normalizePinForRead(MarkerPin.from(marker));
+    }
+
+    private MarkerPin toPin(MarkerPinView view) {
+        return new MarkerPin(
+                view.getId(),
+                view.getLat(),
+                view.getLng(),
+                view.getCategory(),
+                view.getTitle(),
+                view.getIsActive(),
+                view.getMarkImage(),
+                view.getOpenTimeStart(),
+                view.getOpenTimeEnd(),
+                view.getOpenHours(),
+                view.getOpenTimezone(),
+                null
+        );
+    }
+
     private List<MapMarker> normalizeForRead(List<MapMarker> markers) {
         return markers.stream().map(this::normalizeOneForRead).toList();
     }
 
     private MapMarker normalizeOneForRead(MapMarker marker) {
         if (marker == null) return null;
-        String raw = marker.getCategory();
-        String normalized = raw == null ? "" : raw.trim().toLowerCase(Locale.ROOT);
-        if (!SUPPORTED_CATEGORIES.contains(normalized)) {
-            marker.setCategory("self_definition");
-        } else {
-            marker.setCategory(normalized);
-        }
-        applyAvailabilityStatus(marker);
+        marker.setCategory(normalizeCategoryForRead(marker.getCategory()));
         return marker;
     }
 
+    // Index updates must not expose rows that a surrounding transaction later rolls back.
+    private void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
     private Optional<double[]> parseLatLng(String query) {
         if (query == null) return Optional.empty();
         String cleaned = query.trim().replaceAll("\\s+", " ");
@@ -270,61 +797,4 @@ public class MapMarkerService {
             return Optional.empty();
         }
     }
-
-    private String buildNearbyCacheKey(double lat, double lng, int radiusMeters, String category) {
-        return NEARBY_CACHE_PREFIX
-                + "lat=" + roundKeyNumber(lat)
-                + "|lng=" + roundKeyNumber(lng)
-                + "|r=" + radiusMeters
-                + "|c=" + category;
-    }
-
-    private String buildViewportCacheKey(
-            double minLat,
-            double maxLat,
-            double minLng,
-            double maxLng,
-            List<String> categories
-    ) {
-        String categoryPart = "all";
-        if (categories != null && !categories.isEmpty()) {
-            categoryPart = categories.stream()
-                    .map(this::normalizeCategoryForWrite)
-                    .sorted(Comparator.naturalOrder())
-                    .distinct()
-                    .reduce((a, b) -> a + "," + b)
-                    .orElse("all");
-        }
-        return VIEWPORT_CACHE_PREFIX
-                + "minLat=" + roundKeyNumber(minLat)
-                + "|maxLat=" + roundKeyNumber(maxLat)
-                + "|minLng=" + roundKeyNumber(minLng)
-                + "|maxLng=" + roundKeyNumber(maxLng)
-                + "|cat=" + categoryPart;
-    }
-
-    private String roundKeyNumber(double value) {
-        return String.format(Locale.ROOT, "%.4f", value);
-    }
-
-    private List<MapMarker> readMarkerListFromCache(String key) {
-        if (!markerCacheRedisEnabled || redisTemplate == null) return null;
-        try {
-            String json = redisTemplate.opsForValue().get(key);
-            if (json == null || json.isBlank()) return null;
-            return objectMapper.readValue(json, MARKER_LIST_TYPE);
-        } catch (Exception ignore) {
-            return null;
-        }
-    }
-
-    private void writeMarkerListToCache(String key, List<MapMarker> markers, long ttlSeconds) {
-        if (!markerCacheRedisEnabled || redisTemplate == null || markers == null) return;
-        try {
-            String json = objectMapper.writeValueAsString(markers);
-            redisTemplate.opsForValue().set(key, json, ttlSeconds, TimeUnit.SECONDS);
-        } catch (Exception ignore) {
-            // Cache write failure should not affect primary DB response.
-        }
-    }
 }
@@ -0,0 +1,96 @@
+package com.lycoris.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Slippy-map (Web Mercator z/x/y) tile. Edge rows are stretched to ±90° so every valid
+ * coordinate falls into exactly one tile column/row at each zoom.
+ */
+public record MapTile(int z, int x, int y) {
+
+    public static final int MAX_ZOOM = 22;
+    private static final double MAX_MERCATOR_LAT = 85.0511287798066;
+
+    public static MapTile containing(double lat, double lng, int z) {
+        return new MapTile(z, lngToX(lng, z), latToY(lat, z));
+    }
+
+    /**
+     * Picks the deepest zoom (up to {@code maxZoom}) at which the bounds are covered by at most
+     * {@code maxTiles} tiles, so nearby viewports resolve to the same tile keys.
+     */
+    public static int zoomFor(double minLat, double maxLat, double minLng, double maxLng, int maxZoom, int maxTiles) {
+        int zoom = 0;
+        for (int z = 1; z <= maxZoom; z++) {
+            if (countCovering(minLat, maxLat, minLng, maxLng, z) > maxTiles) break;
+            zoom = z;
+        }
+        return zoom;
+    }
+
+    public static long countCovering(double minLat, double maxLat, double minLng, double maxLng, int z) {
+        long cols = lngToX(maxLng, z) - lngToX(minLng, z) + 1L;
+        long rows = latToY(minLat, z) - latToY(maxLat, z) + 1L;
+        return cols * rows;
+    }
+
+    public static List<MapTile> covering(double minLat, double maxLat, double minLng, double maxLng, int z) {
+        int minX = lngToX(minLng, z);
+        int maxX = lngToX(maxLng, z);
+        int minY = latToY(maxLat, z);
+        int maxY = latToY(minLat, z);
+        List<MapTile> tiles = new ArrayList<>((maxX - minX + 1) * (maxY - minY + 1));
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                tiles.add(new MapTile(z, x, y));
+            }
+        }
+        return tiles;
+    }
+
+    public boolean isValid() {
+        if (z < 0 || z > MAX_ZOOM) return false;
+        int n = 1 << z;
+        return x >= 0 && x < n && y >= 0 && y < n;
+    }
+
+    public double minLng() {
+        return x * 360.0 / (1 << z) - 180.0;
+    }
+
+    public double maxLng() {
+        return (x + 1) * 360.0 / (1 << z) - 180.0;
+    }
+
+    public double maxLat() {
+        return y == 0 ? 90.0 : yToLat(y, z);
+    }
+
+    public double minLat() {
+        return y == (1 << z) - 1 ? -90.0 : yToLat(y + 1, z);
+    }
+
+    public String path() {
+        return z + "/" + x + "/" + y;
+    }
+
+    private static int lngToX(double lng, int z) {
+        int n = 1 << z;
+        int x = (int) Math.floor((lng + 180.0) / 360.0 * n);
+        return Math.max(0, Math.min(n - 1, x));
+    }
+
+    private static int latToY(double lat, int z) {
+        int n = 1 << z;
+        double clamped = Math.max(-MAX_MERCATOR_LAT, Math.min(MAX_MERCATOR_LAT, lat));
+        double rad = Math.toRadians(clamped);
+        int y = (int) Math.floor((1 - Math.log(Math.tan(rad) + 1 / Math.cos(rad)) / Math.PI) / 2 * n);
+        return Math.max(0, Math.min(n - 1, y));
+    }
+
+    private static double yToLat(int y, int z) {
+        double n = Math.PI - 2 * Math.PI * y / (1 << z);
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+}
@@ -0,0 +1,187 @@
+package com.lycoris.service;
+
+import com.lycoris.dto.ApiResponse;
+import com.lycoris.dto.MarkerBatchQuery;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * POST /api/markers/batch: many small map reads in one HTTP request. Cache lookups for every
+ * sub-query are warmed together first ({@link MarkerCache#prefetch}), then the sub-queries run on
+ * a bounded pool, so only the misses cost real work and they overlap.
+ */
+@Service
+public class MarkerBatchService {
+
+    private static final int MAX_QUERIES = 50;
+
+    private final MapMarkerService markerService;
+    private final MarkerCache cache;
+    private final ThreadPoolExecutor executor;
+
+    public MarkerBatchService(
+            MapMarkerService markerService,
+            MarkerCache cache,
+            @Value("${app.marker-batch.threads:4}") int threads,
+            @Value("${app.marker-batch.queue-capacity:64}") int queueCapacity
+    ) {
+        this.markerService = markerService;
+        this.cache = cache;
+        AtomicInteger counter = new AtomicInteger();
+        int poolSize = Math.max(1, threads);
+        // A full queue runs the sub-query on the request thread instead of failing it.
+        this.executor = new ThreadPoolExecutor(
+                poolSize,
+                poolSize,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                r -> {
+                    Thread t = new Thread(r, "marker-batch-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** One result per query, in request order; a bad sub-query fails alone. */
+    public List<ApiResponse<Object>> resolve(List<MarkerBatchQuery> queries) {
+        if (queries == null || queries.isEmpty()) {
+            throw new IllegalArgumentException("查询列表不能为空");
+        }
+        if (queries.size() > MAX_QUERIES) {
+            throw new IllegalArgumentException("单次最多 " + MAX_QUERIES + " 个子查询");
+        }
+        Set<String> keys = new LinkedHashSet<>();
+        for (MarkerBatchQuery query : queries) {
+            try {
+                keys.addAll(cacheKeys(query));
+            } catch (IllegalArgumentException ignore) {
+                // Reported in that query's own result.
+            }
+        }
+        cache.prefetch(keys);
+
+        List<CompletableFuture<Object>> futures = new ArrayList<>(queries.size());
+        for (MarkerBatchQuery query : queries) {
+            futures.add(CompletableFuture.supplyAsync(() -> run(query), executor));
+        }
+        List<ApiResponse<Object>> results = new ArrayList<>(queries.size());
+        for (CompletableFuture<Object> future : futures) {
+            try {
+                results.add(ApiResponse.success(future.join()));
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IllegalArgumentException bad) {
+                    results.add(ApiResponse.error(400, bad.getMessage()));
+                } else {
+                    System.out.println("MARKER_BATCH_QUERY_FAILED " + e.getCause());
+                    results.add(ApiResponse.error(500, "查询失败"));
+                }
+            }
+        }
+        return results;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private List<String> cacheKeys(MarkerBatchQuery query) {
+        return switch (typeOf(query)) {
+            case "viewport" -> markerService.shouldCluster(query.getZoom())
+                    ? List.of()
+                    : markerService.viewportCacheKeys(
+                            required(query.getMinLat(), "minLat"),
+                            required(query.getMaxLat(), "maxLat"),
+                            required(query.getMinLng(), "minLng"),
+                            required(query.getMaxLng(), "maxLng")
+                    );
+            case "nearby" -> List.of(markerService.nearbyCacheKey(
+                    required(query.getLat(), "lat"),
+                    required(query.getLng(), "lng"),
+                    radiusOf(query),
+                    nearbyCategories(query),
+                    openNowOf(query)
+            ));
+            default -> List.of();
+        };
+    }
+
+    private Object run(MarkerBatchQuery query) {
+        return switch (typeOf(query)) {
+            case "viewport" -> {
+                double minLat = required(query.getMinLat(), "minLat");
+                double maxLat = required(query.getMaxLat(), "maxLat");
+                double minLng = required(query.getMinLng(), "minLng");
+                double maxLng = required(query.getMaxLng(), "maxLng");
+                yield markerService.shouldCluster(query.getZoom())
+                        ? markerService.clusterPublicActiveInBounds(
+                                minLat, maxLat, minLng, maxLng, query.getCategories(), query.getZoom(), openNowOf(query))
+                        : markerService.listPublicActiveInBounds(
+                                minLat, maxLat, minLng, maxLng, query.getCategories(), openNowOf(query));
+            }
+            case "nearby" -> {
+                double lat = required(query.getLat(), "lat");
+                double lng = required(query.getLng(), "lng");
+                if (lat < -90 || lat > 90 || lng < -180 || lng > 180) {
+                    throw new IllegalArgumentException("lat/lng 不合法");
+                }
+                yield query.getCategories() != null && !query.getCategories().isEmpty()
+                        ? markerService.nearbyPublicActiveByCategory(lat, lng, radiusOf(query), query.getCategories(), openNowOf(query))
+                        : markerService.nearbyPublicActive(lat, lng, radiusOf(query), categoryOf(query), openNowOf(query));
+            }
+            case "ids" -> markerService.listPublicPins(query.getIds());
+            default -> throw new IllegalArgumentException("不支持的查询类型：" + query.getType());
+        };
+    }
+
+    private List<String> nearbyCategories(MarkerBatchQuery query) {
+        if (query.getCategories() != null && !query.getCategories().isEmpty()) {
+            return markerService.sortedCategories(query.getCategories());
+        }
+        return List.of(markerService.normalizeCategoryForWrite(categoryOf(query)));
+    }
+
+    private static String typeOf(MarkerBatchQuery query) {
+        if (query == null || query.getType() == null) {
+            throw new IllegalArgumentException("缺少查询类型");
+        }
+        return query.getType().trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Same defaults as the GET endpoints.
+    private static String categoryOf(MarkerBatchQuery query) {
+        return query.getCategory() == null ? "accessible_toilet" : query.getCategory();
+    }
+
+    private static int radiusOf(MarkerBatchQuery query) {
+        return query.getRadius() == null ? 1000 : query.getRadius();
+    }
+
+    private static boolean openNowOf(MarkerBatchQuery query) {
+        return Boolean.TRUE.equals(query.getOpenNow());
+    }
+
+    private static double required(Double value, String name) {
+        if (value == null) {
+            throw new IllegalArgumentException("缺少 " + name + " 参数");
+        }
+        return value;
+    }
+}
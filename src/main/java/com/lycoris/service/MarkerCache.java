@@ -0,0 +1,769 @@
+package com.lycoris.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.lycoris.dto.MarkerPin;
+import com.lycoris.service.MarkerCacheCodec.ValueCodec;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Two-tier cache for marker listings: a size-bounded in-process Caffeine L1 holding decoded
+ * values in front of Redis (L2). Nearby and viewport entries hold only marker id lists; each
+ * marker's pin body is stored once, in a Redis hash keyed by id, and lists are hydrated from it
+ * with one HMGET; value bytes come from {@link MarkerCacheCodec}. The hash is split into
+ * generations one list TTL long, each with a fixed expiry that outlives every list written during
+ * it, so a body that missed an update cannot stick around indefinitely. A marker that kept its
+ * location and visibility is updated by replacing its hash field. Otherwise entries are
+ * invalidated on write rather than by short TTLs:
+ * <ul>
+ *   <li>viewport tiles (built from the in-memory index) are deleted per spatial cell around each
+ *       changed marker, and deleted again shortly after to catch instances whose index lagged;</li>
+ *   <li>nearby/nearest lists and vector tiles (built from the DB after commit) carry the
+ *       {@link MarkerRegionVersions} of the area they cover in their key, so a change orphans only
+ *       the entries around it.</li>
+ * </ul>
+ * Other instances evict their own L1 copies when the change reaches them over pub/sub
+ * ({@link #markerChangedElsewhere}); the short L1 TTL bounds the damage of a lost message.
+ *
+ * <p>Misses are coalesced: concurrent requests for one key share a single computation, an
+ * optional short Redis lock does the same across instances for DB-backed entries, and entries
+ * close to expiry are refreshed early (XFetch) instead of all expiring at once.
+ */
+@Component
+public class MarkerCache {
+
+    static final int TILE_MAX_ZOOM = 16;
+
+    private static final String LOCAL_PIN_PREFIX = "pin:";
+    private static final String LOCK_PREFIX = "lock:";
+    private static final long LOCK_POLL_MILLIS = 50;
+    private static final int ENTRY_HEADER_BYTES = 2 * Long.BYTES;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class
+    );
+
+    private final StringRedisTemplate redisTemplate;
+    private final MarkerCacheCodec codec;
+    private final MarkerRegionVersions regionVersions;
+    private final TaskScheduler taskScheduler;
+    private final boolean redisEnabled;
+    private final long nearbyTtlSeconds;
+    private final long viewportTtlSeconds;
+    private final long vectorTileTtlSeconds;
+    private final long redeleteDelayMillis;
+    private final double earlyRefreshBeta;
+    private final long lockMillis;
+    private final Cache<String, Object> local;
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final String nearbyPrefix;
+    private final String tilePrefix;
+    private final String vectorTilePrefix;
+    private final String pinHashPrefix;
+
+    public MarkerCache(
+            ObjectProvider<StringRedisTemplate> redisTemplateProvider,
+            MarkerCacheCodec codec,
+            MarkerRegionVersions regionVersions,
+            TaskScheduler taskScheduler,
+            @Value("${cache.marker.redis-enabled:true}") boolean redisEnabled,
+            @Value("${cache.marker.nearby-ttl-seconds:1800}") long nearbyTtlSeconds,
+            @Value("${cache.marker.viewport-ttl-seconds:1800}") long viewportTtlSeconds,
+            @Value("${cache.marker.vector-tile-ttl-seconds:3600}") long vectorTileTtlSeconds,
+            @Value("${cache.marker.tile-redelete-delay-millis:2000}") long redeleteDelayMillis,
+            @Value("${cache.marker.l1-max-weight-bytes:67108864}") long l1MaxWeightBytes,
+            @Value("${cache.marker.l1-ttl-seconds:300}") long l1TtlSeconds,
+            @Value("${cache.marker.early-refresh-beta:1.0}") double earlyRefreshBeta,
+            @Value("${cache.marker.recompute-lock-millis:0}") long lockMillis
+    ) {
+        this.redisTemplate = redisTemplateProvider.getIfAvailable();
+        this.codec = codec;
+        this.regionVersions = regionVersions;
+        this.taskScheduler = taskScheduler;
+        this.redisEnabled = redisEnabled;
+        this.nearbyTtlSeconds = Math.max(1, nearbyTtlSeconds);
+        this.viewportTtlSeconds = Math.max(1, viewportTtlSeconds);
+        this.vectorTileTtlSeconds = Math.max(1, vectorTileTtlSeconds);
+        this.redeleteDelayMillis = Math.max(0, redeleteDelayMillis);
+        this.earlyRefreshBeta = Math.max(0, earlyRefreshBeta);
+        this.lockMillis = Math.max(0, lockMillis);
+        this.local = Caffeine.newBuilder()
+                .maximumWeight(Math.max(0, l1MaxWeightBytes))
+                .weigher(MarkerCache::estimateBytes)
+                .expireAfterWrite(Duration.ofSeconds(Math.max(1, l1TtlSeconds)))
+                .build();
+        this.nearbyPrefix = "cache:marker:nearby:v7:" + codec.id() + ":";
+        this.tilePrefix = "cache:marker:tile:v5:" + codec.id() + ":";
+        this.vectorTilePrefix = "cache:marker:mvt:v6:" + codec.id() + ":";
+        this.pinHashPrefix = "cache:marker:pins:v3:" + codec.id() + ":";
+    }
+
+    public String nearbyKey(double lat, double lng, int radiusMeters, String category, boolean openNow) {
+        return nearbyPrefix + regionVersions.stamp(lat, lng, radiusMeters)
+                + ":lat=" + roundKeyNumber(lat)
+                + "|lng=" + roundKeyNumber(lng)
+                + "|r=" + radiusMeters
+                + "|c=" + category
+                + (openNow ? "|open" : "");
+    }
+
+    /**
+     * Stamped with the regions within {@code regionMeters} of the point, so only a result lying
+     * entirely inside that circle may be stored under it.
+     */
+    public String nearestKey(double lat, double lng, int regionMeters, int k, String category, boolean openNow) {
+        return nearbyPrefix + regionVersions.stamp(lat, lng, regionMeters)
+                + ":knn:lat=" + roundKeyNumber(lat)
+                + "|lng=" + roundKeyNumber(lng)
+                + "|k=" + k
+                + "|c=" + category
+                + (openNow ? "|open" : "");
+    }
+
+    public String tileKey(MapTile tile) {
+        return tilePrefix + tile.path();
+    }
+
+    /** {@code bufferRatio}: how far past its edges, relative to its size, the tile reads. */
+    public String vectorTileKey(MapTile tile, double bufferRatio, List<String> sortedCategories) {
+        double latPad = (tile.maxLat() - tile.minLat()) * bufferRatio;
+        double lngPad = (tile.maxLng() - tile.minLng()) * bufferRatio;
+        String versions = regionVersions.stamp(
+                tile.minLat() - latPad, tile.maxLat() + latPad, tile.minLng() - lngPad, tile.maxLng() + lngPad, tile.z());
+        return vectorTilePrefix + versions + ":" + tile.path()
+                + "|cat=" + (sortedCategories == null ? "all" : String.join(",", sortedCategories));
+    }
+
+    /**
+     * Cached nearby/nearest list, or {@code loader}'s result (computed once per key across waiters).
+     */
+    public List<MarkerPin> nearby(String key, Supplier<List<MarkerPin>> loader) {
+        return load(key, nearbyTtlSeconds, codec.idLists(), ids -> hydrate(List.of(ids)).get(0), this::storePins, loader);
+    }
+
+    public byte[] vectorTile(String key, Supplier<byte[]> loader) {
+        return load(key, vectorTileTtlSeconds, codec.raw(), Function.identity(), Function.identity(), loader);
+    }
+
+    /**
+     * Viewport tiles in {@code keys} order. Misses are looked up with one MGET and hydrated with
+     * one HMGET; what is still missing is computed by {@code loader} (given the key's index),
+     * unless another request in this JVM is already computing that tile, in which case its result
+     * is awaited instead.
+     */
+    @SuppressWarnings("unchecked")
+    public List<List<MarkerPin>> tiles(List<String> keys, IntFunction<List<MarkerPin>> loader) {
+        List<Entry<List<Long>>> entries = readTiles(keys);
+        List<List<MarkerPin>> hydrated = hydrate(entries.stream().map(e -> e == null ? null : e.value()).toList());
+        List<List<MarkerPin>> result = new ArrayList<>(Collections.nCopies(keys.size(), null));
+        Map<Integer, CompletableFuture<Object>> owned = new LinkedHashMap<>();
+        Map<Integer, CompletableFuture<Object>> waiting = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            List<MarkerPin> hit = hydrated.get(i);
+            if (hit != null && !refreshEarly(entries.get(i))) {
+                result.set(i, hit);
+                continue;
+            }
+            CompletableFuture<Object> mine = new CompletableFuture<>();
+            CompletableFuture<Object> running = inFlight.putIfAbsent(keys.get(i), mine);
+            if (running == null) {
+                owned.put(i, mine);
+            } else if (hit != null) {
+                result.set(i, hit);
+            } else {
+                waiting.put(i, running);
+            }
+        }
+        if (!owned.isEmpty()) {
+            try {
+                Map<String, Entry<List<Long>>> computed = new LinkedHashMap<>();
+                Map<Long, MarkerPin> pins = new LinkedHashMap<>();
+                for (Integer i : owned.keySet()) {
+                    long startedAt = System.currentTimeMillis();
+                    List<MarkerPin> tilePins = loader.apply(i);
+                    long now = System.currentTimeMillis();
+                    computed.put(keys.get(i), new Entry<>(idsOf(tilePins), now - startedAt, now + viewportTtlSeconds * 1000));
+                    tilePins.forEach(pin -> pins.put(pin.getId(), pin));
+                    result.set(i, tilePins);
+                }
+                owned.forEach((i, future) -> future.complete(result.get(i)));
+                writeTiles(computed, pins.values());
+            } catch (RuntimeException | Error e) {
+                owned.values().forEach(future -> future.completeExceptionally(e));
+                throw e;
+            } finally {
+                owned.forEach((i, future) -> inFlight.remove(keys.get(i), future));
+            }
+        }
+        waiting.forEach((i, future) -> result.set(i, (List<MarkerPin>) await(future)));
+        return result;
+    }
+
+    /**
+     * Warms L1 for many id-list keys at once (batch requests): one MGET for the lists not held
+     * locally, then one HMGET for the pin bodies they need. The per-key calls that follow then
+     * only go to Redis or compute for real misses.
+     */
+    @SuppressWarnings("unchecked")
+    public void prefetch(Collection<String> keys) {
+        List<List<Long>> idLists = new ArrayList<>();
+        List<String> remote = new ArrayList<>();
+        for (String key : new LinkedHashSet<>(keys)) {
+            Object hit = local.getIfPresent(key);
+            if (hit instanceof Entry<?> entry && entry.value() instanceof List<?> ids) {
+                idLists.add((List<Long>) ids);
+            } else if (hit == null) {
+                remote.add(key);
+            }
+        }
+        if (!remote.isEmpty()) {
+            List<Entry<List<Long>>> fetched = readTiles(remote);
+            for (Entry<List<Long>> entry : fetched) {
+                if (entry != null) idLists.add(entry.value());
+            }
+        }
+        if (!idLists.isEmpty()) {
+            hydrate(idLists);
+        }
+    }
+
+    /**
+     * Applies one committed marker write made by this instance. {@code current} is the marker's
+     * public pin, or null if it is no longer listed. Tiles around it are only invalidated when
+     * the set of markers they contain may have changed (added, removed or moved); otherwise
+     * rewriting the marker's hash field is enough.
+     */
+    public void markerChanged(MarkerPin previous, MarkerPin current) {
+        if (current != null) {
+            updatePins(List.of(current));
+        } else if (previous != null) {
+            local.invalidate(LOCAL_PIN_PREFIX + previous.getId());
+            if (enabled()) {
+                byte[][] fields = { pinField(previous.getId()) };
+                runQuietly(connection -> {
+                    deleteBodies(connection, fields);
+                    return null;
+                });
+            }
+        }
+        if (membershipChanged(previous, current)) {
+            invalidateTiles(Arrays.asList(previous, current));
+        }
+    }
+
+    /**
+     * Replaces the shared bodies of pins whose attributes (not location) changed. Old bodies are
+     * deleted from every generation first, so none survives even if the new one is not stored.
+     */
+    public void updatePins(Collection<MarkerPin> pins) {
+        if (pins.isEmpty()) return;
+        pins.forEach(pin -> local.put(LOCAL_PIN_PREFIX + pin.getId(), pin));
+        if (!enabled()) return;
+        Map<byte[], byte[]> bodies = encodeBodies(pins);
+        byte[][] fields = pins.stream().map(pin -> pinField(pin.getId())).toArray(byte[][]::new);
+        long generation = pinGeneration();
+        runQuietly(connection -> {
+            deleteBodies(connection, fields);
+            if (!bodies.isEmpty()) {
+                byte[] hash = pinHash(generation);
+                connection.hashCommands().hMSet(hash, bodies);
+                connection.keyCommands().expireAt(hash, pinHashExpiresAt(generation));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * L1-only counterpart of {@link #updatePins}, for bodies another instance already wrote to
+     * Redis.
+     */
+    public void pinsUpdatedElsewhere(Collection<MarkerPin> pins) {
+        pins.forEach(pin -> local.put(LOCAL_PIN_PREFIX + pin.getId(), pin));
+    }
+
+    /**
+     * L1-only counterpart of {@link #markerChanged}, for changes made (and already written to
+     * Redis) by another instance.
+     */
+    public void markerChangedElsewhere(MarkerPin previous, MarkerPin current) {
+        Set<String> keys = membershipChanged(previous, current)
+                ? tileKeysAround(Arrays.asList(previous, current))
+                : new LinkedHashSet<>();
+        if (previous != null) keys.add(LOCAL_PIN_PREFIX + previous.getId());
+        if (current != null) keys.add(LOCAL_PIN_PREFIX + current.getId());
+        if (keys.isEmpty()) return;
+        Runnable evict = () -> local.invalidateAll(keys);
+        evict.run();
+        scheduleAgain(evict);
+    }
+
+    /**
+     * Drops the viewport tiles (every zoom) containing the given pins' locations, now and once
+     * more after a short delay.
+     */
+    public void invalidateTiles(Collection<MarkerPin> pins) {
+        Set<String> keys = tileKeysAround(pins);
+        if (keys.isEmpty()) return;
+        Runnable evict = () -> {
+            local.invalidateAll(keys);
+            if (enabled()) deleteQuietly(keys);
+        };
+        evict.run();
+        scheduleAgain(evict);
+    }
+
+    private void scheduleAgain(Runnable evict) {
+        if (redeleteDelayMillis > 0) {
+            taskScheduler.schedule(evict, Instant.now().plusMillis(redeleteDelayMillis));
+        }
+    }
+
+    private static boolean membershipChanged(MarkerPin previous, MarkerPin current) {
+        return previous == null
+                || current == null
+                || !Objects.equals(previous.getLat(), current.getLat())
+                || !Objects.equals(previous.getLng(), current.getLng());
+    }
+
+    private Set<String> tileKeysAround(Collection<MarkerPin> pins) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (MarkerPin pin : pins) {
+            if (pin == null || pin.getLat() == null || pin.getLng() == null) continue;
+            for (int z = 0; z <= TILE_MAX_ZOOM; z++) {
+                keys.add(tileKey(MapTile.containing(pin.getLat(), pin.getLng(), z)));
+            }
+        }
+        return keys;
+    }
+
+    private void deleteQuietly(Collection<String> keys) {
+        try {
+            redisTemplate.delete(keys);
+        } catch (Exception ignore) {
+            // Entries still expire by TTL.
+        }
+    }
+
+    /**
+     * {@code codec} encodes what the entry stores, {@code hydrate} turns that back into the result
+     * (null if no longer possible) and {@code store} does the reverse for a fresh result.
+     */
+    private <S, T> T load(
+            String key,
+            long ttlSeconds,
+            ValueCodec<S> codec,
+            Function<S, T> hydrate,
+            Function<T, S> store,
+            Supplier<T> loader
+    ) {
+        Entry<S> hit = read(key, codec);
+        T cached = hit == null ? null : hydrate.apply(hit.value());
+        if (cached != null && !refreshEarly(hit)) return cached;
+        return singleFlight(key, cached, () -> {
+            if (!lockEnabled()) return compute(key, ttlSeconds, codec, store, loader);
+            String lockKey = LOCK_PREFIX + key;
+            String token = UUID.randomUUID().toString();
+            if (tryLock(lockKey, token)) {
+                try {
+                    return compute(key, ttlSeconds, codec, store, loader);
+                } finally {
+                    unlock(lockKey, token);
+                }
+            }
+            // Another instance is recomputing: keep serving the old value, or wait for the new one.
+            if (cached != null) return cached;
+            T ready = awaitRemote(key, codec, hydrate);
+            return ready != null ? ready : compute(key, ttlSeconds, codec, store, loader);
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T singleFlight(String key, T stale, Supplier<T> compute) {
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            return stale != null ? stale : (T) await(running);
+        }
+        try {
+            T value = compute.get();
+            mine.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private static Object await(CompletableFuture<Object> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    private <S, T> T compute(String key, long ttlSeconds, ValueCodec<S> codec, Function<T, S> store, Supplier<T> loader) {
+        long startedAt = System.currentTimeMillis();
+        T value = loader.get();
+        if (value == null) return null;
+        long now = System.currentTimeMillis();
+        Entry<S> entry = new Entry<>(store.apply(value), now - startedAt, now + ttlSeconds * 1000);
+        local.put(key, entry);
+        if (enabled()) {
+            try {
+                byte[] rawKey = bytes(key);
+                byte[] raw = encode(entry, codec);
+                redisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands().set(
+                        rawKey,
+                        raw,
+                        Expiration.seconds(ttlSeconds),
+                        RedisStringCommands.SetOption.upsert()
+                ));
+            } catch (Exception ignore) {
+                // Cache write failure should not affect primary DB response.
+            }
+        }
+        return value;
+    }
+
+    /**
+     * XFetch: recompute before expiry with a probability that rises as expiry nears, scaled by how
+     * long the value took to compute, so one request refreshes it while the rest still hit.
+     */
+    private boolean refreshEarly(Entry<?> entry) {
+        if (earlyRefreshBeta <= 0) return false;
+        double gap = -entry.deltaMillis() * earlyRefreshBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= entry.expiresAtMillis();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Entry<T> read(String key, ValueCodec<T> codec) {
+        Entry<T> hit = (Entry<T>) local.getIfPresent(key);
+        return hit != null ? hit : readRemote(key, codec);
+    }
+
+    private <T> Entry<T> readRemote(String key, ValueCodec<T> codec) {
+        if (!enabled()) return null;
+        try {
+            byte[] rawKey = bytes(key);
+            byte[] raw = redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+            Entry<T> entry = decode(raw, codec);
+            if (entry != null) local.put(key, entry);
+            return entry;
+        } catch (Exception ignore) {
+            return null;
+        }
+    }
+
+    /** Id-list entries: L1 first, then one MGET for the rest; a null element means a miss. */
+    @SuppressWarnings("unchecked")
+    private List<Entry<List<Long>>> readTiles(List<String> keys) {
+        List<Entry<List<Long>>> result = new ArrayList<>(keys.size());
+        List<Integer> misses = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Entry<List<Long>> hit = (Entry<List<Long>>) local.getIfPresent(keys.get(i));
+            result.add(hit);
+            if (hit == null) misses.add(i);
+        }
+        if (misses.isEmpty() || !enabled()) return result;
+        List<byte[]> values = null;
+        try {
+            byte[][] rawKeys = misses.stream().map(i -> bytes(keys.get(i))).toArray(byte[][]::new);
+            values = redisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+        } catch (Exception ignore) {
+            // Treat an unreachable cache as a full miss.
+        }
+        if (values == null) return result;
+        for (int j = 0; j < misses.size(); j++) {
+            try {
+                Entry<List<Long>> entry = decode(values.get(j), codec.idLists());
+                if (entry == null) continue;
+                int i = misses.get(j);
+                local.put(keys.get(i), entry);
+                result.set(i, entry);
+            } catch (Exception ignore) {
+                // Corrupt entry: recompute it.
+            }
+        }
+        return result;
+    }
+
+    private void writeTiles(Map<String, Entry<List<Long>>> entries, Collection<MarkerPin> pins) {
+        local.putAll(entries);
+        pins.forEach(pin -> local.put(LOCAL_PIN_PREFIX + pin.getId(), pin));
+        if (!enabled() || entries.isEmpty()) return;
+        try {
+            Map<byte[], byte[]> encoded = new LinkedHashMap<>();
+            for (Map.Entry<String, Entry<List<Long>>> entry : entries.entrySet()) {
+                encoded.put(bytes(entry.getKey()), encode(entry.getValue(), codec.idLists()));
+            }
+            Map<byte[], byte[]> bodies = encodeBodies(pins);
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Map.Entry<byte[], byte[]> entry : encoded.entrySet()) {
+                    connection.stringCommands().set(
+                            entry.getKey(),
+                            entry.getValue(),
+                            Expiration.seconds(viewportTtlSeconds),
+                            RedisStringCommands.SetOption.upsert()
+                    );
+                }
+                addBodies(connection, bodies);
+                return null;
+            });
+        } catch (Exception ignore) {
+            // Cache write failure should not affect primary DB response.
+        }
+    }
+
+    /**
+     * Resolves id lists to pins: L1 first, then one pipelined HMGET of the current and previous
+     * generation for every id still missing. A list comes back null when any of its markers has no
+     * body any more (it must be recomputed).
+     */
+    private List<List<MarkerPin>> hydrate(List<List<Long>> idLists) {
+        Map<Long, MarkerPin> found = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (List<Long> ids : idLists) {
+            if (ids == null) continue;
+            for (Long id : ids) {
+                if (found.containsKey(id)) continue;
+                MarkerPin pin = (MarkerPin) local.getIfPresent(LOCAL_PIN_PREFIX + id);
+                found.put(id, pin);
+                if (pin == null) missing.add(id);
+            }
+        }
+        if (!missing.isEmpty() && enabled()) {
+            try {
+                byte[][] fields = missing.stream().map(MarkerCache::pinField).toArray(byte[][]::new);
+                long generation = pinGeneration();
+                List<Object> replies = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    connection.hashCommands().hMGet(pinHash(generation), fields);
+                    connection.hashCommands().hMGet(pinHash(generation - 1), fields);
+                    return null;
+                }, RedisSerializer.byteArray());
+                List<?> current = (List<?>) replies.get(0);
+                List<?> previous = (List<?>) replies.get(1);
+                for (int i = 0; i < missing.size(); i++) {
+                    byte[] value = (byte[]) (current.get(i) != null ? current.get(i) : previous.get(i));
+                    if (value == null) continue;
+                    MarkerPin pin = codec.pins().decode(value);
+                    local.put(LOCAL_PIN_PREFIX + missing.get(i), pin);
+                    found.put(missing.get(i), pin);
+                }
+            } catch (Exception ignore) {
+                // Lists with unresolved ids are recomputed.
+            }
+        }
+        List<List<MarkerPin>> result = new ArrayList<>(idLists.size());
+        for (List<Long> ids : idLists) {
+            List<MarkerPin> pins = ids == null ? null : new ArrayList<>(ids.size());
+            for (int i = 0; pins != null && i < ids.size(); i++) {
+                MarkerPin pin = found.get(ids.get(i));
+                if (pin == null) pins = null;
+                else pins.add(pin);
+            }
+            result.add(pins);
+        }
+        return result;
+    }
+
+    // Keeps the bodies of a freshly computed nearby list and returns what the list entry stores.
+    private List<Long> storePins(List<MarkerPin> pins) {
+        pins.forEach(pin -> local.put(LOCAL_PIN_PREFIX + pin.getId(), pin));
+        if (enabled() && !pins.isEmpty()) {
+            Map<byte[], byte[]> bodies = encodeBodies(pins);
+            runQuietly(connection -> {
+                addBodies(connection, bodies);
+                return null;
+            });
+        }
+        return idsOf(pins);
+    }
+
+    // HSETNX rather than HSET: a request whose source data lagged behind a write must not
+    // overwrite the body that write stored (writes delete old bodies first, see updatePins).
+    private void addBodies(RedisConnection connection, Map<byte[], byte[]> bodies) {
+        if (bodies.isEmpty()) return;
+        long generation = pinGeneration();
+        byte[] hash = pinHash(generation);
+        bodies.forEach((field, body) -> connection.hashCommands().hSetNX(hash, field, body));
+        connection.keyCommands().expireAt(hash, pinHashExpiresAt(generation));
+    }
+
+    // Reads fall back to the previous generation, so both must lose the body.
+    private void deleteBodies(RedisConnection connection, byte[][] fields) {
+        long generation = pinGeneration();
+        connection.hashCommands().hDel(pinHash(generation), fields);
+        connection.hashCommands().hDel(pinHash(generation - 1), fields);
+    }
+
+    private Map<byte[], byte[]> encodeBodies(Collection<MarkerPin> pins) {
+        Map<byte[], byte[]> bodies = new LinkedHashMap<>();
+        for (MarkerPin pin : pins) {
+            try {
+                bodies.put(pinField(pin.getId()), codec.pins().encode(pin));
+            } catch (IOException ignore) {
+                // Lists referencing it miss and are recomputed.
+            }
+        }
+        return bodies;
+    }
+
+    // One generation per list TTL: lists written during one only ever read it or the next.
+    private long pinGeneration() {
+        return System.currentTimeMillis() / 1000 / pinGenerationSeconds();
+    }
+
+    private byte[] pinHash(long generation) {
+        return bytes(pinHashPrefix + generation);
+    }
+
+    // Fixed, not extended by later writes: the end of the generation plus the longest list TTL.
+    private long pinHashExpiresAt(long generation) {
+        return (generation + 2) * pinGenerationSeconds();
+    }
+
+    private long pinGenerationSeconds() {
+        return Math.max(nearbyTtlSeconds, viewportTtlSeconds);
+    }
+
+    private void runQuietly(RedisCallback<Object> action) {
+        try {
+            redisTemplate.executePipelined(action);
+        } catch (Exception ignore) {
+            // Cache write failure should not affect primary DB response.
+        }
+    }
+
+    private boolean tryLock(String lockKey, String token) {
+        try {
+            return Boolean.TRUE.equals(
+                    redisTemplate.opsForValue().setIfAbsent(lockKey, token, Duration.ofMillis(lockMillis))
+            );
+        } catch (Exception ignore) {
+            return true; // No Redis, no cross-instance coordination: compute locally.
+        }
+    }
+
+    private void unlock(String lockKey, String token) {
+        try {
+            redisTemplate.execute(UNLOCK_SCRIPT, List.of(lockKey), token);
+        } catch (Exception ignore) {
+            // The lock expires on its own.
+        }
+    }
+
+    private <S, T> T awaitRemote(String key, ValueCodec<S> codec, Function<S, T> hydrate) {
+        long deadline = System.currentTimeMillis() + lockMillis;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(LOCK_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            Entry<S> entry = readRemote(key, codec);
+            if (entry != null) return hydrate.apply(entry.value());
+        }
+        return null;
+    }
+
+    // Redis value layout: computeMillis (8 bytes), expiresAtMillis (8 bytes), payload.
+    private static <T> byte[] encode(Entry<T> entry, ValueCodec<T> codec) throws IOException {
+        byte[] payload = codec.encode(entry.value());
+        return ByteBuffer.allocate(ENTRY_HEADER_BYTES + payload.length)
+                .putLong(entry.deltaMillis())
+                .putLong(entry.expiresAtMillis())
+                .put(payload)
+                .array();
+    }
+
+    private static <T> Entry<T> decode(byte[] raw, ValueCodec<T> codec) throws IOException {
+        if (raw == null || raw.length < ENTRY_HEADER_BYTES) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        long deltaMillis = buffer.getLong();
+        long expiresAtMillis = buffer.getLong();
+        T value = codec.decode(Arrays.copyOfRange(raw, ENTRY_HEADER_BYTES, raw.length));
+        return new Entry<>(value, deltaMillis, expiresAtMillis);
+    }
+
+    private static List<Long> idsOf(List<MarkerPin> pins) {
+        return pins.stream().map(MarkerPin::getId).toList();
+    }
+
+    private static byte[] pinField(Long id) {
+        return bytes(String.valueOf(id));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Rough retained size; only needs to be proportional for the weight bound to work.
+    private static int estimateBytes(String key, Object cached) {
+        int size = 96 + key.length() * 2;
+        Object value = cached instanceof Entry<?> entry ? entry.value() : cached;
+        if (value instanceof byte[] bytes) {
+            size += bytes.length;
+        } else if (value instanceof List<?> ids) {
+            size += ids.size() * 24;
+        } else if (value instanceof MarkerPin) {
+            size += 256;
+        }
+        return size;
+    }
+
+    private boolean enabled() {
+        return redisEnabled && redisTemplate != null;
+    }
+
+    private boolean lockEnabled() {
+        return lockMillis > 0 && enabled();
+    }
+
+    private static String roundKeyNumber(double value) {
+        return String.format(Locale.ROOT, "%.4f", value);
+    }
+
+    // Value plus the XFetch inputs: how long it took to compute and when the Redis copy expires.
+    private record Entry<T>(T value, long deltaMillis, long expiresAtMillis) {}
+}
@@ -0,0 +1,188 @@
+package com.lycoris.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.lycoris.dto.MarkerPin;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Byte format of marker cache values in Redis. Pin bodies are Jackson-encoded as Smile (binary
+ * JSON, the default) or plain JSON (readable from redis-cli); id lists are zigzag delta varints.
+ * Every value starts with one flag byte, and values over the threshold are deflated.
+ *
+ * <p>{@link #id()} is part of every cache key, so instances running different formats during a
+ * rollout never read each other's values.
+ */
+@Component
+public class MarkerCacheCodec {
+
+    private static final int PLAIN = 0;
+    private static final int DEFLATED = 1;
+
+    private final String format;
+    private final ObjectMapper mapper;
+    private final int compressThresholdBytes;
+    private final ValueCodec<MarkerPin> pins;
+    private final ValueCodec<List<Long>> idLists;
+    private final ValueCodec<byte[]> raw;
+
+    public MarkerCacheCodec(
+            ObjectMapper objectMapper,
+            @Value("${cache.marker.codec:smile}") String format,
+            @Value("${cache.marker.compress-threshold-bytes:1024}") int compressThresholdBytes
+    ) {
+        this.format = format.trim().toLowerCase(Locale.ROOT);
+        this.mapper = switch (this.format) {
+            case "json" -> objectMapper;
+            case "smile" -> objectMapper.copyWith(new SmileFactory());
+            default -> throw new IllegalStateException("Unsupported cache.marker.codec: " + format);
+        };
+        this.compressThresholdBytes = compressThresholdBytes > 0 ? compressThresholdBytes : Integer.MAX_VALUE;
+        this.pins = new ValueCodec<>() {
+            @Override
+            public byte[] encode(MarkerPin pin) throws IOException {
+                return frame(mapper.writeValueAsBytes(pin));
+            }
+
+            @Override
+            public MarkerPin decode(byte[] bytes) throws IOException {
+                return mapper.readValue(unframe(bytes), MarkerPin.class);
+            }
+        };
+        this.idLists = new ValueCodec<>() {
+            @Override
+            public byte[] encode(List<Long> ids) {
+                return frame(encodeIds(ids));
+            }
+
+            @Override
+            public List<Long> decode(byte[] bytes) throws IOException {
+                return decodeIds(unframe(bytes));
+            }
+        };
+        this.raw = new ValueCodec<>() {
+            @Override
+            public byte[] encode(byte[] value) {
+                return frame(value);
+            }
+
+            @Override
+            public byte[] decode(byte[] bytes) throws IOException {
+                return unframe(bytes);
+            }
+        };
+    }
+
+    public String id() {
+        return format;
+    }
+
+    public ValueCodec<MarkerPin> pins() {
+        return pins;
+    }
+
+    public ValueCodec<List<Long>> idLists() {
+        return idLists;
+    }
+
+    /** Opaque bytes (vector tiles); only framed and compressed. */
+    public ValueCodec<byte[]> raw() {
+        return raw;
+    }
+
+    public interface ValueCodec<T> {
+        byte[] encode(T value) throws IOException;
+
+        T decode(byte[] bytes) throws IOException;
+    }
+
+    private byte[] frame(byte[] payload) {
+        if (payload.length >= compressThresholdBytes) {
+            byte[] deflated = deflate(payload);
+            if (deflated.length < payload.length) return deflated;
+        }
+        byte[] framed = new byte[payload.length + 1];
+        framed[0] = PLAIN;
+        System.arraycopy(payload, 0, framed, 1, payload.length);
+        return framed;
+    }
+
+    private static byte[] unframe(byte[] framed) throws IOException {
+        if (framed.length == 0) throw new IOException("empty cache value");
+        return switch (framed[0]) {
+            case PLAIN -> Arrays.copyOfRange(framed, 1, framed.length);
+            case DEFLATED -> {
+                try (InflaterInputStream in = new InflaterInputStream(
+                        new ByteArrayInputStream(framed, 1, framed.length - 1))) {
+                    yield in.readAllBytes();
+                }
+            }
+            default -> throw new IOException("unknown cache value flag " + framed[0]);
+        };
+    }
+
+    private static byte[] deflate(byte[] payload) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + 16);
+            out.write(DEFLATED);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Differences between consecutive ids, zigzagged so unsorted lists (nearby is by distance) stay small.
+    private static byte[] encodeIds(List<Long> ids) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(ids.size() * 3 + 8);
+        long previous = 0;
+        for (Long id : ids) {
+            long delta = id - previous;
+            previous = id;
+            long zigzag = (delta << 1) ^ (delta >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                out.write((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            out.write((int) zigzag);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<Long> decodeIds(byte[] bytes) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        long previous = 0;
+        int i = 0;
+        while (i < bytes.length) {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (i >= bytes.length || shift > 63) throw new IOException("truncated id list");
+                b = bytes[i++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            ids.add(previous);
+        }
+        return ids;
+    }
+}
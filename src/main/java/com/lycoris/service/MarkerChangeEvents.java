@@ -0,0 +1,87 @@
+package com.lycoris.service;
+
+import com.lycoris.dto.MarkerPin;
+import com.lycoris.entity.MapMarker;
+import com.lycoris.repository.MapMarkerRepository;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Marker change notifications between backend instances over Redis pub/sub, so each instance's
+ * in-memory index and L1 cache follow writes made elsewhere within milliseconds instead of at the
+ * next index catch-up / L1 expiry.
+ * Message format: "{node} {upsert|remove} {markerId}".
+ */
+@Component
+public class MarkerChangeEvents implements MessageListener {
+
+    public static final String CHANNEL = "marker:changes";
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final StringRedisTemplate redisTemplate;
+    private final MapMarkerRepository repo;
+    private final MarkerSpatialIndex spatialIndex;
+    private final MarkerCache cache;
+    private final boolean redisEnabled;
+
+    public MarkerChangeEvents(
+            ObjectProvider<StringRedisTemplate> redisTemplateProvider,
+            MapMarkerRepository repo,
+            MarkerSpatialIndex spatialIndex,
+            MarkerCache cache,
+            @Value("${cache.marker.redis-enabled:true}") boolean redisEnabled
+    ) {
+        this.redisTemplate = redisTemplateProvider.getIfAvailable();
+        this.repo = repo;
+        this.spatialIndex = spatialIndex;
+        this.cache = cache;
+        this.redisEnabled = redisEnabled;
+    }
+
+    public void publishUpsert(Long markerId) {
+        publish("upsert", markerId);
+    }
+
+    public void publishRemove(Long markerId) {
+        publish("remove", markerId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(" ");
+        if (parts.length != 3 || nodeId.equals(parts[0])) return;
+        try {
+            Long markerId = Long.parseLong(parts[2]);
+            MarkerPin previous;
+            MarkerPin current = null;
+            Optional<MapMarker> marker = "upsert".equals(parts[1]) ? repo.findById(markerId) : Optional.empty();
+            if (marker.isPresent()) {
+                previous = spatialIndex.upsert(marker.get());
+                current = MapMarkerService.publicPinOf(marker.get());
+            } else {
+                previous = spatialIndex.remove(markerId);
+            }
+            cache.markerChangedElsewhere(previous, current);
+        } catch (Exception e) {
+            // The periodic index catch-up still picks the change up.
+            System.out.println("MARKER_EVENT_APPLY_FAILED " + String.join(" ", parts) + " : " + e.getMessage());
+        }
+    }
+
+    private void publish(String type, Long markerId) {
+        if (!redisEnabled || redisTemplate == null || markerId == null) return;
+        try {
+            redisTemplate.convertAndSend(CHANNEL, nodeId + " " + type + " " + markerId);
+        } catch (Exception ignore) {
+            // Other instances converge on their next index catch-up.
+        }
+    }
+}
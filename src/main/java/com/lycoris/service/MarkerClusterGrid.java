@@ -0,0 +1,143 @@
+package com.lycoris.service;
+
+import com.lycoris.dto.MarkerCluster;
+import com.lycoris.dto.MarkerPin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-zoom grid aggregates (count, coordinate sums, per-category breakdown) of indexed markers,
+ * kept for all markers and separately for those currently active (the openNow filter).
+ * Cells are immutable and swapped on write, so readers never see half-applied updates.
+ */
+class MarkerClusterGrid {
+
+    // Cells are 1/4 of a tile (64px on a 256px tile) at the requested zoom.
+    private static final int CELL_ZOOM_SHIFT = 2;
+
+    private final int maxZoom;
+    private final List<ConcurrentHashMap<Long, Cell>> levels;
+
+    MarkerClusterGrid(int maxZoom) {
+        this.maxZoom = maxZoom;
+        this.levels = new ArrayList<>(maxZoom + 1);
+        for (int z = 0; z <= maxZoom; z++) {
+            levels.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    void add(MarkerPin marker) {
+        apply(marker, 1);
+    }
+
+    void remove(MarkerPin marker) {
+        apply(marker, -1);
+    }
+
+    List<MarkerCluster> query(
+            int zoom,
+            double minLat,
+            double maxLat,
+            double minLng,
+            double maxLng,
+            Set<String> categories,
+            boolean openNow
+    ) {
+        int z = Math.max(0, Math.min(maxZoom, zoom));
+        int cellZoom = z + CELL_ZOOM_SHIFT;
+        ConcurrentHashMap<Long, Cell> level = levels.get(z);
+        List<Cell> cells = new ArrayList<>();
+        // Probe cell by cell only when the viewport spans fewer cells than the level holds.
+        if (MapTile.countCovering(minLat, maxLat, minLng, maxLng, cellZoom) <= level.size()) {
+            for (MapTile tile : MapTile.covering(minLat, maxLat, minLng, maxLng, cellZoom)) {
+                Cell cell = level.get(cellKey(tile.x(), tile.y()));
+                if (cell != null) cells.add(cell);
+            }
+        } else {
+            cells.addAll(level.values());
+        }
+
+        List<MarkerCluster> result = new ArrayList<>();
+        for (Cell cell : cells) {
+            int count = 0;
+            double sumLat = 0;
+            double sumLng = 0;
+            Map<String, Integer> breakdown = new TreeMap<>();
+            for (Map.Entry<String, CategoryStats> entry : cell.byCategory.entrySet()) {
+                if (categories != null && !categories.contains(entry.getKey())) continue;
+                CategoryStats stats = entry.getValue();
+                int categoryCount = openNow ? stats.openCount : stats.count;
+                if (categoryCount == 0) continue;
+                count += categoryCount;
+                sumLat += openNow ? stats.openSumLat : stats.sumLat;
+                sumLng += openNow ? stats.openSumLng : stats.sumLng;
+                breakdown.put(entry.getKey(), categoryCount);
+            }
+            if (count == 0) continue;
+            double lat = sumLat / count;
+            double lng = sumLng / count;
+            if (lat < minLat || lat > maxLat || lng < minLng || lng > maxLng) continue;
+            result.add(new MarkerCluster(lat, lng, count, breakdown));
+        }
+        return result;
+    }
+
+    private void apply(MarkerPin marker, int delta) {
+        String category = MapMarkerService.normalizeCategoryForRead(marker.getCategory());
+        double lat = marker.getLat();
+        double lng = marker.getLng();
+        boolean open = Boolean.TRUE.equals(marker.getIsActive());
+        for (int z = 0; z <= maxZoom; z++) {
+            MapTile cell = MapTile.containing(lat, lng, z + CELL_ZOOM_SHIFT);
+            levels.get(z).compute(cellKey(cell.x(), cell.y()), (key, current) -> {
+                Cell updated = (current == null ? Cell.EMPTY : current).plus(category, lat, lng, delta, open);
+                return updated.byCategory.isEmpty() ? null : updated;
+            });
+        }
+    }
+
+    private static long cellKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    private record CategoryStats(
+            int count,
+            double sumLat,
+            double sumLng,
+            int openCount,
+            double openSumLat,
+            double openSumLng
+    ) {
+        static final CategoryStats EMPTY = new CategoryStats(0, 0, 0, 0, 0, 0);
+    }
+
+    private record Cell(Map<String, CategoryStats> byCategory) {
+        static final Cell EMPTY = new Cell(Map.of());
+
+        Cell plus(String category, double lat, double lng, int delta, boolean open) {
+            Map<String, CategoryStats> next = new HashMap<>(byCategory);
+            CategoryStats current = next.getOrDefault(category, CategoryStats.EMPTY);
+            int count = current.count + delta;
+            if (count <= 0) {
+                next.remove(category);
+            } else {
+                int openDelta = open ? delta : 0;
+                next.put(category, new CategoryStats(
+                        count,
+                        current.sumLat + delta * lat,
+                        current.sumLng + delta * lng,
+                        current.openCount + openDelta,
+                        current.openSumLat + openDelta * lat,
+                        current.openSumLng + openDelta * lng
+                ));
+            }
+            return new Cell(Map.copyOf(next));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.lycoris.service;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic version of the public marker dataset, shared through Redis so every instance
+ * hands out the same ETags for the full public listing (narrower reads are versioned per region
+ * by {@link MarkerRegionVersions}). Falls back to a per-process counter when Redis is
+ * unavailable. The last value seen is kept locally and pushed to other instances over pub/sub on every
+ * bump, so reading the version normally costs no Redis round trip.
+ */
+@Component
+public class MarkerDatasetVersion implements MessageListener {
+
+    public static final String CHANNEL = "marker:dataset:version";
+    private static final String REDIS_KEY = "marker:dataset:version";
+    // Upper bound on staleness if a pub/sub message is lost.
+    private static final long LOCAL_CACHE_MILLIS = 5_000;
+
+    private final StringRedisTemplate redisTemplate;
+    private final boolean redisEnabled;
+    private final AtomicLong localVersion = new AtomicLong();
+    // Keeps local fallback versions from colliding with those of a previous process.
+    private final String localEpoch = Long.toString(System.currentTimeMillis(), 36);
+    private volatile Seen seen;
+
+    public MarkerDatasetVersion(
+            ObjectProvider<StringRedisTemplate> redisTemplateProvider,
+            @Value("${cache.marker.redis-enabled:true}") boolean redisEnabled
+    ) {
+        this.redisTemplate = redisTemplateProvider.getIfAvailable();
+        this.redisEnabled = redisEnabled;
+    }
+
+    public String current() {
+        Seen cached = seen;
+        if (cached != null && System.currentTimeMillis() - cached.at < LOCAL_CACHE_MILLIS) {
+            return Long.toString(cached.version);
+        }
+        if (redisEnabled && redisTemplate != null) {
+            try {
+                String value = redisTemplate.opsForValue().get(REDIS_KEY);
+                long version = value == null ? 0 : Long.parseLong(value);
+                remember(version, true);
+                return Long.toString(version);
+            } catch (Exception ignore) {
+                // Fallback to local version when Redis is unavailable.
+            }
+        }
+        return "L" + localEpoch + "." + localVersion.get();
+    }
+
+    public void bump() {
+        localVersion.incrementAndGet();
+        if (redisEnabled && redisTemplate != null) {
+            try {
+                Long version = redisTemplate.opsForValue().increment(REDIS_KEY);
+                if (version != null) {
+                    remember(version, false);
+                    redisTemplate.convertAndSend(CHANNEL, Long.toString(version));
+                }
+            } catch (Exception ignore) {
+                // Local version already moved on; Redis catches up on the next write.
+                seen = null;
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            remember(Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8)), false);
+        } catch (NumberFormatException ignore) {
+            // Not a version; ignore.
+        }
+    }
+
+    // Never moves backwards on reordered messages; a fresh GET may (e.g. after a Redis reset).
+    private synchronized void remember(long version, boolean authoritative) {
+        Seen cached = seen;
+        if (authoritative || cached == null || version > cached.version) {
+            seen = new Seen(version, System.currentTimeMillis());
+        }
+    }
+
+    private record Seen(long version, long at) {
+    }
+}
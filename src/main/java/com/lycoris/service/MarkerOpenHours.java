@@ -0,0 +1,171 @@
+package com.lycoris.service;
+
+import com.lycoris.dto.MarkerPin;
+import com.lycoris.repository.MapMarkerRepository;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Open-hours engine. Weekly schedules are compiled to minute-of-week bounds when a marker is
+ * written. The DB evaluates them itself for openNow queries; this keeps the stored isActive shown
+ * on pins in step with them. Instead of polling, it sleeps until the next bound of any indexed
+ * pin (rescheduled whenever indexed hours change), capped so rows outside the index are still
+ * caught up regularly. At each transition every instance flips its own index; one of them, chosen
+ * by a Redis lock on the minute, also updates the DB in one UPDATE and the shared pin bodies and
+ * bumps the versions of the regions around the flipped pins.
+ */
+@Component
+public class MarkerOpenHours {
+
+    private static final String SYNC_LOCK_PREFIX = "lock:marker:open-hours:";
+    private static final Duration SYNC_LOCK_TTL = Duration.ofMinutes(10);
+
+    private final MapMarkerRepository repo;
+    private final MarkerSpatialIndex spatialIndex;
+    private final MarkerDatasetVersion datasetVersion;
+    private final MarkerRegionVersions regionVersions;
+    private final MarkerCache cache;
+    private final TaskScheduler taskScheduler;
+    private final StringRedisTemplate redisTemplate;
+    private final boolean redisEnabled;
+    private final long maxSleepSeconds;
+    private final Object scheduleLock = new Object();
+    private ScheduledFuture<?> next;
+    private Instant nextAt;
+
+    public MarkerOpenHours(
+            MapMarkerRepository repo,
+            MarkerSpatialIndex spatialIndex,
+            MarkerDatasetVersion datasetVersion,
+            MarkerRegionVersions regionVersions,
+            MarkerCache cache,
+            TaskScheduler taskScheduler,
+            ObjectProvider<StringRedisTemplate> redisTemplateProvider,
+            @Value("${cache.marker.redis-enabled:true}") boolean redisEnabled,
+            @Value("${cache.marker.open-hours-max-sleep-seconds:900}") long maxSleepSeconds
+    ) {
+        this.repo = repo;
+        this.spatialIndex = spatialIndex;
+        this.datasetVersion = datasetVersion;
+        this.regionVersions = regionVersions;
+        this.cache = cache;
+        this.taskScheduler = taskScheduler;
+        this.redisTemplate = redisTemplateProvider.getIfAvailable();
+        this.redisEnabled = redisEnabled;
+        this.maxSleepSeconds = Math.max(60, maxSleepSeconds);
+    }
+
+    @PostConstruct
+    void start() {
+        spatialIndex.onSchedulesChanged(() -> scheduleNext(Instant.now()));
+        // First catch-up on the next whole minute, once startup (schema setup included) is done.
+        schedule(Instant.now().truncatedTo(ChronoUnit.MINUTES).plus(1, ChronoUnit.MINUTES));
+    }
+
+    public boolean isOpenNow(OpenSchedule schedule) {
+        return schedule.isOpenAt(OpenSchedule.minuteOfWeek(ZonedDateTime.now(schedule.zone())));
+    }
+
+    void transition(Instant due) {
+        synchronized (scheduleLock) {
+            // From here on any earlier transition found by a concurrent index change wins.
+            nextAt = null;
+        }
+        // Never evaluate before the bound the timer was set for.
+        Instant now = Instant.now();
+        Clock clock = Clock.at(now.isBefore(due) ? due : now);
+        try {
+            List<MarkerPin> flipped = spatialIndex.applyOpenWindows(clock::isOpen);
+            if (claim(clock.minute())) {
+                int updated = 0;
+                try {
+                    // Hours are evaluated at the transition minute; the DB stamps the flipped rows with
+                    // its own clock, so a late run still lands after cursors handed out since that minute.
+                    updated = repo.syncOpenNow(clock.minute(), ZoneId.systemDefault().getId());
+                } catch (Exception e) {
+                    System.out.println("OPEN_HOURS_SYNC_FAILED " + e.getMessage());
+                }
+                // Only isActive changed, so cached id lists stay valid; just the pin bodies are rewritten.
+                cache.updatePins(flipped);
+                // openNow lists and tiles around the flipped pins change; elsewhere they stay valid.
+                regionVersions.bump(flipped);
+                if (updated > 0 || !flipped.isEmpty()) {
+                    datasetVersion.bump();
+                }
+            } else {
+                cache.pinsUpdatedElsewhere(flipped);
+            }
+        } catch (Exception e) {
+            System.out.println("OPEN_HOURS_TRANSITION_FAILED " + e.getMessage());
+        } finally {
+            scheduleNext(clock.minute());
+        }
+    }
+
+    // One instance per transition minute does the shared writes; without Redis every instance does.
+    private boolean claim(Instant minute) {
+        if (!redisEnabled || redisTemplate == null) return true;
+        try {
+            String key = SYNC_LOCK_PREFIX + minute.getEpochSecond() / 60;
+            return !Boolean.FALSE.equals(redisTemplate.opsForValue().setIfAbsent(key, "1", SYNC_LOCK_TTL));
+        } catch (Exception ignore) {
+            // Fallback to doing the writes here when Redis is unavailable.
+            return true;
+        }
+    }
+
+    private void scheduleNext(Instant after) {
+        // Aligned across instances, so they share the lock of the catch-up minute too.
+        Instant cap = Instant.ofEpochSecond((after.getEpochSecond() / maxSleepSeconds + 1) * maxSleepSeconds);
+        Instant at;
+        try {
+            at = spatialIndex.nextOpenTransition(after);
+        } catch (Exception e) {
+            System.out.println("OPEN_HOURS_SCHEDULE_FAILED " + e.getMessage());
+            at = null;
+        }
+        schedule(at == null || at.isAfter(cap) ? cap : at);
+    }
+
+    // Keeps whichever pending transition is earliest.
+    private void schedule(Instant at) {
+        synchronized (scheduleLock) {
+            if (nextAt != null && !at.isBefore(nextAt)) return;
+            if (next != null) next.cancel(false);
+            nextAt = at;
+            next = taskScheduler.schedule(() -> transition(at), at);
+        }
+    }
+
+    // Minute of week per zone for one transition, computed once per zone and then reused.
+    private record Clock(Instant minute, ConcurrentHashMap<ZoneId, Integer> byZone) {
+        static Clock at(Instant now) {
+            return new Clock(now.truncatedTo(ChronoUnit.MINUTES), new ConcurrentHashMap<>());
+        }
+
+        boolean isOpen(OpenSchedule schedule) {
+            return schedule.isOpenAt(minuteOfWeek(schedule.zone()));
+        }
+
+        int minuteOfWeek(ZoneId zone) {
+            Integer cached = byZone.get(zone);
+            if (cached != null) return cached;
+            int local = OpenSchedule.minuteOfWeek(ZonedDateTime.ofInstant(minute, zone));
+            byZone.put(zone, local);
+            return local;
+        }
+    }
+}
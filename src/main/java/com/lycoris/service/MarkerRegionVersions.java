@@ -0,0 +1,186 @@
+package com.lycoris.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.lycoris.dto.MarkerPin;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-region versions of the public marker dataset, so a marker write only orphans the cached
+ * nearby/nearest lists, vector tiles and ETags around it instead of everything. A region is a
+ * slippy tile at one of {@link #LEVELS}; each change bumps the regions containing the marker's old
+ * and new location at every level, and a read stamps its key with the versions of the few regions
+ * covering its area, at the deepest level where that stays cheap. Low-zoom reads spanning a large
+ * area land on coarse regions, which every change nearby bumps, so they are still always fresh.
+ *
+ * <p>Counters live in one Redis hash. Bumps are pushed to other instances over pub/sub and the
+ * versions read are kept locally for a few seconds (the staleness bound if a message is lost), so
+ * stamping a key normally costs no Redis round trip. Falls back to per-process counters when Redis
+ * is unavailable.
+ */
+@Component
+public class MarkerRegionVersions implements MessageListener {
+
+    public static final String CHANNEL = "marker:region:versions";
+    static final int[] LEVELS = { 0, 4, 8, 12 };
+    private static final int MAX_REGIONS = 4;
+    private static final String REDIS_KEY = "marker:region:versions";
+    // Upper bound on staleness if a pub/sub message is lost.
+    private static final long LOCAL_CACHE_MILLIS = 5_000;
+
+    private final StringRedisTemplate redisTemplate;
+    private final boolean redisEnabled;
+    private final Cache<String, Long> seen;
+    private final Map<String, AtomicLong> localVersions = new ConcurrentHashMap<>();
+    // Keeps local fallback versions from colliding with those of a previous process.
+    private final String localEpoch = Long.toString(System.currentTimeMillis(), 36);
+
+    public MarkerRegionVersions(
+            ObjectProvider<StringRedisTemplate> redisTemplateProvider,
+            @Value("${cache.marker.redis-enabled:true}") boolean redisEnabled
+    ) {
+        this.redisTemplate = redisTemplateProvider.getIfAvailable();
+        this.redisEnabled = redisEnabled;
+        this.seen = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterWrite(Duration.ofMillis(LOCAL_CACHE_MILLIS))
+                .build();
+    }
+
+    /**
+     * Versions of the regions covering the bounds, at the deepest level not past {@code maxZoom}
+     * where there are at most {@value #MAX_REGIONS} of them.
+     */
+    public String stamp(double minLat, double maxLat, double minLng, double maxLng, int maxZoom) {
+        int level = LEVELS[0];
+        for (int candidate : LEVELS) {
+            if (candidate > maxZoom || MapTile.countCovering(minLat, maxLat, minLng, maxLng, candidate) > MAX_REGIONS) break;
+            level = candidate;
+        }
+        List<String> regions = MapTile.covering(minLat, maxLat, minLng, maxLng, level).stream().map(MapTile::path).toList();
+        if (enabled()) {
+            try {
+                return join("", versions(regions));
+            } catch (Exception ignore) {
+                // Fallback to local versions when Redis is unavailable.
+            }
+        }
+        List<Long> local = new ArrayList<>(regions.size());
+        for (String region : regions) {
+            AtomicLong version = localVersions.get(region);
+            local.add(version == null ? 0 : version.get());
+        }
+        return join("L" + localEpoch + ".", local);
+    }
+
+    /** Same as {@link #stamp(double, double, double, double, int)} for a circle around a point. */
+    public String stamp(double lat, double lng, double radiusMeters) {
+        double latDelta = Math.toDegrees(radiusMeters / MapMarkerService.EARTH_RADIUS_METERS);
+        double cos = Math.cos(Math.toRadians(lat));
+        double lngDelta = cos < 1e-6 ? 180 : Math.min(180, latDelta / cos);
+        return stamp(
+                Math.max(-90, lat - latDelta),
+                Math.min(90, lat + latDelta),
+                Math.max(-180, lng - lngDelta),
+                Math.min(180, lng + lngDelta),
+                MapTile.MAX_ZOOM
+        );
+    }
+
+    /** Bumps every region containing one of the pins (null entries are skipped). */
+    public void bump(Collection<MarkerPin> pins) {
+        Set<String> regions = new LinkedHashSet<>();
+        for (MarkerPin pin : pins) {
+            if (pin == null || pin.getLat() == null || pin.getLng() == null) continue;
+            for (int level : LEVELS) {
+                regions.add(MapTile.containing(pin.getLat(), pin.getLng(), level).path());
+            }
+        }
+        if (regions.isEmpty()) return;
+        regions.forEach(region -> localVersions.computeIfAbsent(region, r -> new AtomicLong()).incrementAndGet());
+        if (!enabled()) return;
+        List<String> fields = new ArrayList<>(regions);
+        try {
+            byte[] key = REDIS_KEY.getBytes(StandardCharsets.UTF_8);
+            List<Object> versions = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String field : fields) {
+                    connection.hashCommands().hIncrBy(key, field.getBytes(StandardCharsets.UTF_8), 1);
+                }
+                return null;
+            });
+            StringJoiner message = new StringJoiner(",");
+            for (int i = 0; i < fields.size(); i++) {
+                long version = ((Number) versions.get(i)).longValue();
+                remember(fields.get(i), version);
+                message.add(fields.get(i) + "=" + version);
+            }
+            redisTemplate.convertAndSend(CHANNEL, message.toString());
+        } catch (Exception ignore) {
+            // Local versions already moved on; forget what was read so the next stamp re-reads Redis.
+            seen.invalidateAll(fields);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        for (String entry : new String(message.getBody(), StandardCharsets.UTF_8).split(",")) {
+            int eq = entry.indexOf('=');
+            if (eq <= 0) continue;
+            try {
+                remember(entry.substring(0, eq), Long.parseLong(entry.substring(eq + 1)));
+            } catch (NumberFormatException ignore) {
+                // Not a version; ignore.
+            }
+        }
+    }
+
+    // Local hits first, then one HMGET for the rest.
+    private List<Long> versions(List<String> regions) {
+        Map<String, Long> found = new HashMap<>(seen.getAllPresent(regions));
+        List<String> missing = regions.stream().filter(region -> !found.containsKey(region)).toList();
+        if (!missing.isEmpty()) {
+            List<Object> values = redisTemplate.opsForHash().multiGet(REDIS_KEY, new ArrayList<>(missing));
+            for (int i = 0; i < missing.size(); i++) {
+                Object value = values.get(i);
+                long version = value == null ? 0 : Long.parseLong(value.toString());
+                seen.put(missing.get(i), version);
+                found.put(missing.get(i), version);
+            }
+        }
+        return regions.stream().map(found::get).toList();
+    }
+
+    // Never moves backwards on reordered messages.
+    private void remember(String region, long version) {
+        seen.asMap().merge(region, version, Math::max);
+    }
+
+    private static String join(String prefix, List<Long> versions) {
+        StringJoiner joiner = new StringJoiner(".", prefix, "");
+        versions.forEach(version -> joiner.add(Long.toString(version)));
+        return joiner.toString();
+    }
+
+    private boolean enabled() {
+        return redisEnabled && redisTemplate != null;
+    }
+}
@@ -0,0 +1,112 @@
+package com.lycoris.service;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Turns marker text into search lexemes. CJK runs become overlapping unigrams + bigrams (Postgres
+ * has no CJK word splitter); other letter/digit runs stay whole words matched by prefix.
+ */
+final class MarkerSearchTokenizer {
+
+    private static final int MAX_WORD_LENGTH = 64;
+
+    private MarkerSearchTokenizer() {
+    }
+
+    /** Space-separated lexemes stored in map_markers.search_terms. */
+    static String indexTerms(String... texts) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String text : texts) {
+            for (Run run : runs(text)) {
+                if (run.cjk) {
+                    int[] cps = run.text.codePoints().toArray();
+                    for (int i = 0; i < cps.length; i++) {
+                        terms.add(new String(cps, i, 1));
+                        if (i + 1 < cps.length) {
+                            terms.add(new String(cps, i, 2));
+                        }
+                    }
+                } else {
+                    terms.add(run.text);
+                }
+            }
+        }
+        return String.join(" ", terms);
+    }
+
+    /**
+     * tsquery text (cast with ::tsquery, so lexemes are taken literally) requiring every query
+     * token, or null when the query has nothing searchable.
+     */
+    static String toTsQuery(String query) {
+        Set<String> clauses = new LinkedHashSet<>();
+        for (Run run : runs(query)) {
+            if (run.cjk) {
+                int[] cps = run.text.codePoints().toArray();
+                if (cps.length == 1) {
+                    clauses.add(quote(run.text));
+                }
+                for (int i = 0; i + 1 < cps.length; i++) {
+                    clauses.add(quote(new String(cps, i, 2)));
+                }
+            } else {
+                clauses.add(quote(run.text) + ":*");
+            }
+        }
+        return clauses.isEmpty() ? null : String.join(" & ", clauses);
+    }
+
+    private static String quote(String lexeme) {
+        // Runs only contain letters/digits, so there is nothing to escape.
+        return "'" + lexeme + "'";
+    }
+
+    private static List<Run> runs(String text) {
+        List<Run> runs = new ArrayList<>();
+        if (text == null || text.isBlank()) return runs;
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder current = new StringBuilder();
+        boolean currentCjk = false;
+        for (int i = 0; i < normalized.length(); ) {
+            int cp = normalized.codePointAt(i);
+            i += Character.charCount(cp);
+            boolean cjk = isCjk(cp);
+            boolean word = cjk || Character.isLetterOrDigit(cp);
+            if (!word || (current.length() > 0 && cjk != currentCjk)) {
+                flush(runs, current, currentCjk);
+            }
+            if (word) {
+                current.appendCodePoint(cp);
+                currentCjk = cjk;
+            }
+        }
+        flush(runs, current, currentCjk);
+        return runs;
+    }
+
+    private static void flush(List<Run> runs, StringBuilder current, boolean cjk) {
+        if (current.length() == 0) return;
+        String text = current.toString();
+        if (!cjk && text.length() > MAX_WORD_LENGTH) {
+            text = text.substring(0, MAX_WORD_LENGTH);
+        }
+        runs.add(new Run(text, cjk));
+        current.setLength(0);
+    }
+
+    private static boolean isCjk(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+
+    private record Run(String text, boolean cjk) {
+    }
+}
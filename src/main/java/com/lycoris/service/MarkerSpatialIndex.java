@@ -0,0 +1,513 @@
+package com.lycoris.service;
+
+import com.lycoris.dto.MarkerCluster;
+import com.lycoris.dto.MarkerPin;
+import com.lycoris.entity.MapMarker;
+import com.lycoris.entity.MarkerDeletion;
+import com.lycoris.repository.MapMarkerRepository;
+import com.lycoris.repository.MarkerDeletionRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * In-process STR-packed R-tree over APPROVED public markers, plus per-zoom cluster aggregates.
+ * Readers work on an immutable snapshot of immutable pins. Writes do not touch the packed tree:
+ * they go to a small overlay of changed pins (copied per write) that queries consult next to it,
+ * and the tree is repacked off the write lock once the overlay grows or on the periodic catch-up.
+ * The cluster grid is patched incrementally. Other instances' writes arrive over pub/sub
+ * ({@link MarkerChangeEvents}); the periodic catch-up reads rows changed since the last one from
+ * the DB, so a lost message is repaired without reloading everything.
+ */
+@Component
+public class MarkerSpatialIndex {
+
+    private static final int NODE_CAPACITY = 16;
+    // Overlay size that triggers a repack: at least this, or a fraction of the packed pins.
+    private static final int REPACK_MIN_OVERLAY = 256;
+    private static final int REPACK_OVERLAY_DIVISOR = 64;
+    private static final int CATCH_UP_PAGE = 500;
+    // Rows younger than this may still belong to uncommitted transactions with an earlier updatedAt.
+    private static final long CATCH_UP_LAG_SECONDS = 2;
+
+    private final MapMarkerRepository repo;
+    private final MarkerDeletionRepository deletionRepo;
+    private final int clusterMaxZoom;
+    private final Object writeLock = new Object();
+    private final AtomicBoolean repacking = new AtomicBoolean();
+    private volatile Snapshot snapshot;
+    private volatile MarkerClusterGrid clusters;
+    private volatile Runnable schedulesChanged = () -> { };
+    // (updatedAt, id) of the last row the index has caught up with.
+    private volatile Instant caughtUpTo;
+    private volatile long caughtUpId;
+
+    public MarkerSpatialIndex(
+            MapMarkerRepository repo,
+            MarkerDeletionRepository deletionRepo,
+            @Value("${cache.marker.cluster-max-zoom:12}") int clusterMaxZoom
+    ) {
+        this.repo = repo;
+        this.deletionRepo = deletionRepo;
+        this.clusterMaxZoom = Math.max(0, Math.min(MapTile.MAX_ZOOM, clusterMaxZoom));
+    }
+
+    /** Called after indexed opening hours were added, changed or dropped. */
+    public void onSchedulesChanged(Runnable listener) {
+        this.schedulesChanged = listener;
+    }
+
+    public int clusterMaxZoom() {
+        return clusterMaxZoom;
+    }
+
+    public List<MarkerCluster> clusters(
+            int zoom,
+            double minLat,
+            double maxLat,
+            double minLng,
+            double maxLng,
+            Set<String> categories,
+            boolean openNow
+    ) {
+        ensureLoaded();
+        return clusters.query(zoom, minLat, maxLat, minLng, maxLng, categories, openNow);
+    }
+
+    public List<MarkerPin> all() {
+        Snapshot current = ensureLoaded();
+        List<MarkerPin> result = new ArrayList<>(current.base.size() + current.overlay.size());
+        for (MarkerPin pin : current.base.values()) {
+            if (!current.overlay.containsKey(pin.getId())) result.add(pin);
+        }
+        for (MarkerPin pin : current.overlay.values()) {
+            if (pin != null) result.add(pin);
+        }
+        return result;
+    }
+
+    /** Listed pins for these ids, in the given order; unknown or unlisted ids are skipped. */
+    public List<MarkerPin> pins(Collection<Long> ids) {
+        Snapshot current = ensureLoaded();
+        List<MarkerPin> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            MarkerPin pin = current.get(id);
+            if (pin != null) result.add(pin);
+        }
+        return result;
+    }
+
+    public List<MarkerPin> query(double minLat, double maxLat, double minLng, double maxLng, Set<String> categories) {
+        Snapshot current = ensureLoaded();
+        Map<Long, MarkerPin> overlay = current.overlay;
+        List<MarkerPin> result = new ArrayList<>();
+        for (MarkerPin m : overlay.values()) {
+            if (m != null && matches(m, minLat, maxLat, minLng, maxLng, categories)) result.add(m);
+        }
+        if (current.root == null) return result;
+        Node[] stack = new Node[64];
+        int depth = 0;
+        stack[depth++] = current.root;
+        while (depth > 0) {
+            Node node = stack[--depth];
+            if (!node.intersects(minLat, maxLat, minLng, maxLng)) continue;
+            if (node.items != null) {
+                for (MarkerPin m : node.items) {
+                    if (!matches(m, minLat, maxLat, minLng, maxLng, categories)) continue;
+                    // Changed or removed since the tree was packed: the overlay has the truth.
+                    if (!overlay.isEmpty() && overlay.containsKey(m.getId())) continue;
+                    result.add(m);
+                }
+            } else {
+                if (depth + node.children.length > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2 + node.children.length);
+                }
+                for (Node child : node.children) {
+                    stack[depth++] = child;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(MarkerPin m, double minLat, double maxLat, double minLng, double maxLng, Set<String> categories) {
+        double lat = m.getLat();
+        double lng = m.getLng();
+        if (lat < minLat || lat > maxLat || lng < minLng || lng > maxLng) return false;
+        return categories == null || categories.contains(m.getCategory());
+    }
+
+    /** Returns the pin this marker had in the index before, if any. */
+    public MarkerPin upsert(MapMarker marker) {
+        if (marker == null || marker.getId() == null) return null;
+        Map<Long, MarkerPin> change = new HashMap<>();
+        change.put(marker.getId(), MapMarkerService.publicPinOf(marker));
+        return write(change).get(marker.getId());
+    }
+
+    /** Returns the removed pin, if the marker was indexed. */
+    public MarkerPin remove(Long markerId) {
+        if (markerId == null) return null;
+        Map<Long, MarkerPin> change = new HashMap<>();
+        change.put(markerId, null);
+        return write(change).get(markerId);
+    }
+
+    /**
+     * Replaces indexed pins that have opening hours and whose isActive no longer matches
+     * {@code isOpen} with flipped copies, published as a new snapshot. Returns the new pins.
+     */
+    public List<MarkerPin> applyOpenWindows(Predicate<OpenSchedule> isOpen) {
+        ensureLoaded();
+        List<MarkerPin> changed = new ArrayList<>();
+        synchronized (writeLock) {
+            Map<Long, MarkerPin> flips = new HashMap<>();
+            snapshot.forEachScheduled((pin, schedule) -> {
+                boolean open = isOpen.test(schedule);
+                if (open != Boolean.TRUE.equals(pin.getIsActive())) {
+                    MarkerPin flipped = pin.withIsActive(open);
+                    flips.put(flipped.getId(), flipped);
+                    changed.add(flipped);
+                }
+            });
+            if (changed.isEmpty()) return changed;
+            // Only isActive changed, so the schedules themselves stay as they were.
+            writeLocked(flips, new HashMap<>());
+        }
+        repackIfNeeded();
+        return changed;
+    }
+
+    /**
+     * The earliest instant after {@code after} at which some indexed pin opens or closes, or null
+     * if none has opening hours.
+     */
+    public Instant nextOpenTransition(Instant after) {
+        Map<ZoneId, Integer> minuteByZone = new HashMap<>();
+        Map<ZoneId, Integer> nextByZone = new HashMap<>();
+        ensureLoaded().forEachScheduled((pin, schedule) -> {
+            ZoneId zone = schedule.zone();
+            int minute = minuteByZone.computeIfAbsent(zone, z -> OpenSchedule.minuteOfWeek(after.atZone(z)));
+            int next = schedule.nextBoundAfter(minute);
+            if (next >= 0) nextByZone.merge(zone, next, Math::min);
+        });
+        Instant earliest = null;
+        for (Map.Entry<ZoneId, Integer> entry : nextByZone.entrySet()) {
+            Instant at = OpenSchedule.atMinuteOfWeek(after, entry.getKey(), entry.getValue());
+            if (earliest == null || at.isBefore(earliest)) earliest = at;
+        }
+        return earliest;
+    }
+
+    // Other backend instances write markers too; catch up with their changes in case a pub/sub
+    // message was lost, and fold the overlay into the tree.
+    @Scheduled(
+            initialDelayString = "${cache.marker.index-refresh-seconds:60}",
+            fixedDelayString = "${cache.marker.index-refresh-seconds:60}",
+            timeUnit = TimeUnit.SECONDS
+    )
+    public void refresh() {
+        if (snapshot == null) return;
+        try {
+            catchUp();
+        } catch (Exception e) {
+            System.out.println("MARKER_INDEX_CATCH_UP_FAILED " + e.getMessage());
+        }
+        repack();
+    }
+
+    // Applies rows changed (and markers deleted) since the last catch-up, keyset-paginated on
+    // (updatedAt, id) like /changes.
+    private void catchUp() {
+        Instant upTo = Instant.now().minusSeconds(CATCH_UP_LAG_SECONDS).truncatedTo(ChronoUnit.MICROS);
+        Instant since = caughtUpTo;
+        long sinceId = caughtUpId;
+        if (since == null || !upTo.isAfter(since)) return;
+        Instant deletedAfter = since;
+        List<MapMarker> rows;
+        do {
+            rows = repo.findChangedSince(since, sinceId, upTo, PageRequest.of(0, CATCH_UP_PAGE));
+            Map<Long, MarkerPin> changes = new HashMap<>();
+            for (MapMarker row : rows) {
+                changes.put(row.getId(), MapMarkerService.publicPinOf(row));
+            }
+            write(changes);
+            if (!rows.isEmpty()) {
+                since = rows.get(rows.size() - 1).getUpdatedAt();
+                sinceId = rows.get(rows.size() - 1).getId();
+            }
+        } while (rows.size() == CATCH_UP_PAGE);
+        Map<Long, MarkerPin> deletions = new HashMap<>();
+        for (MarkerDeletion deletion : deletionRepo.findByDeletedAtGreaterThanAndDeletedAtLessThanEqualOrderByDeletedAtAsc(deletedAfter, upTo)) {
+            deletions.put(deletion.getMarkerId(), null);
+        }
+        write(deletions);
+        caughtUpTo = upTo;
+        caughtUpId = Long.MAX_VALUE;
+    }
+
+    // Applies the changes (id -> new pin, or null to drop it); returns the pins they replaced.
+    private Map<Long, MarkerPin> write(Map<Long, MarkerPin> changes) {
+        Map<Long, MarkerPin> previous = new HashMap<>();
+        if (changes.isEmpty()) return previous;
+        boolean schedulesMoved;
+        synchronized (writeLock) {
+            if (snapshot == null) return previous; // not loaded yet; the first query reads from DB anyway
+            schedulesMoved = writeLocked(changes, previous);
+        }
+        if (schedulesMoved) {
+            schedulesChanged.run();
+        }
+        repackIfNeeded();
+        return previous;
+    }
+
+    private boolean writeLocked(Map<Long, MarkerPin> changes, Map<Long, MarkerPin> previous) {
+        Snapshot current = snapshot;
+        Map<Long, MarkerPin> effective = new HashMap<>();
+        boolean schedulesMoved = false;
+        for (Map.Entry<Long, MarkerPin> change : changes.entrySet()) {
+            MarkerPin before = current.get(change.getKey());
+            MarkerPin after = change.getValue();
+            if (before == null && after == null) continue;
+            if (before != null) {
+                clusters.remove(before);
+                previous.put(change.getKey(), before);
+            }
+            if (after != null) {
+                clusters.add(after);
+            }
+            effective.put(change.getKey(), after);
+            schedulesMoved |= !sameSchedule(before, after);
+        }
+        if (!effective.isEmpty()) {
+            snapshot = current.with(effective);
+        }
+        return schedulesMoved;
+    }
+
+    private void repackIfNeeded() {
+        Snapshot current = snapshot;
+        if (current != null
+                && current.overlay.size() > Math.max(REPACK_MIN_OVERLAY, current.base.size() / REPACK_OVERLAY_DIVISOR)) {
+            repack();
+        }
+    }
+
+    // Packs tree and overlay into a fresh tree without holding the write lock, then carries over
+    // whatever was written meanwhile.
+    private void repack() {
+        if (!repacking.compareAndSet(false, true)) return;
+        try {
+            Snapshot from = snapshot;
+            if (from == null || from.overlay.isEmpty()) return;
+            Snapshot packed = Snapshot.pack(from.merged());
+            synchronized (writeLock) {
+                Snapshot current = snapshot;
+                if (current.base != from.base) return; // reloaded meanwhile
+                Map<Long, MarkerPin> newer = new HashMap<>();
+                current.overlay.forEach((id, pin) -> {
+                    if (!from.overlay.containsKey(id) || from.overlay.get(id) != pin) newer.put(id, pin);
+                });
+                snapshot = newer.isEmpty() ? packed : packed.with(newer);
+            }
+        } finally {
+            repacking.set(false);
+        }
+    }
+
+    private Snapshot ensureLoaded() {
+        Snapshot current = snapshot;
+        if (current != null) return current;
+        synchronized (writeLock) {
+            if (snapshot == null) {
+                reload();
+            }
+            return snapshot;
+        }
+    }
+
+    private void reload() {
+        synchronized (writeLock) {
+            Instant loadedAt = Instant.now();
+            Map<Long, MarkerPin> byId = new HashMap<>();
+            MarkerClusterGrid grid = new MarkerClusterGrid(clusterMaxZoom);
+            for (MarkerPin loaded : repo.findPublicApprovedPins()) {
+                if (loaded.getLat() == null || loaded.getLng() == null) continue;
+                MarkerPin pin = MapMarkerService.normalizePinForRead(loaded);
+                byId.put(pin.getId(), pin);
+                grid.add(pin);
+            }
+            clusters = grid;
+            snapshot = Snapshot.pack(byId);
+            // Re-reads a little of what the load already saw rather than miss a late commit.
+            caughtUpTo = loadedAt.minusSeconds(CATCH_UP_LAG_SECONDS).truncatedTo(ChronoUnit.MICROS);
+            caughtUpId = 0;
+        }
+        schedulesChanged.run();
+    }
+
+    private static boolean sameSchedule(MarkerPin before, MarkerPin after) {
+        int[] beforeBounds = before == null ? null : before.getOpenWeekBounds();
+        int[] afterBounds = after == null ? null : after.getOpenWeekBounds();
+        if (beforeBounds == null && afterBounds == null) return true;
+        return Arrays.equals(beforeBounds, afterBounds)
+                && Objects.equals(before.getOpenTimezone(), after.getOpenTimezone());
+    }
+
+    static boolean isIndexable(MapMarker m) {
+        return Boolean.TRUE.equals(m.getIsPublic())
+                && "APPROVED".equals(m.getReviewStatus())
+                && m.getLat() != null
+                && m.getLng() != null;
+    }
+
+    /**
+     * {@code base} is what the tree was packed from; {@code overlay} holds pins written since
+     * (null for removed ones) and takes precedence over it.
+     */
+    private record Snapshot(
+            Map<Long, MarkerPin> base,
+            Node root,
+            List<ScheduledPin> scheduled,
+            Map<Long, MarkerPin> overlay
+    ) {
+        static Snapshot pack(Map<Long, MarkerPin> byId) {
+            List<ScheduledPin> scheduled = new ArrayList<>();
+            for (MarkerPin pin : byId.values()) {
+                if (pin.getOpenWeekBounds() == null) continue;
+                scheduled.add(new ScheduledPin(pin.getId(), OpenSchedule.decode(pin.getOpenWeekBounds(), pin.getOpenTimezone())));
+            }
+            return new Snapshot(Map.copyOf(byId), Node.pack(byId.values()), scheduled, Map.of());
+        }
+
+        MarkerPin get(Long id) {
+            return overlay.containsKey(id) ? overlay.get(id) : base.get(id);
+        }
+
+        Snapshot with(Map<Long, MarkerPin> changes) {
+            Map<Long, MarkerPin> next = new HashMap<>(overlay);
+            next.putAll(changes);
+            return new Snapshot(base, root, scheduled, Collections.unmodifiableMap(next));
+        }
+
+        Map<Long, MarkerPin> merged() {
+            Map<Long, MarkerPin> byId = new HashMap<>(base);
+            overlay.forEach((id, pin) -> {
+                if (pin == null) byId.remove(id);
+                else byId.put(id, pin);
+            });
+            return byId;
+        }
+
+        // Overlay pins are few, so their schedules are decoded on the fly.
+        void forEachScheduled(BiConsumer<MarkerPin, OpenSchedule> action) {
+            for (ScheduledPin entry : scheduled) {
+                if (!overlay.containsKey(entry.id)) action.accept(base.get(entry.id), entry.schedule);
+            }
+            for (MarkerPin pin : overlay.values()) {
+                if (pin != null && pin.getOpenWeekBounds() != null) {
+                    action.accept(pin, OpenSchedule.decode(pin.getOpenWeekBounds(), pin.getOpenTimezone()));
+                }
+            }
+        }
+    }
+
+    private record ScheduledPin(Long id, OpenSchedule schedule) {
+    }
+
+    private static final class Node {
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double minLng = Double.POSITIVE_INFINITY;
+        double maxLng = Double.NEGATIVE_INFINITY;
+        Node[] children;
+        MarkerPin[] items;
+
+        boolean intersects(double qMinLat, double qMaxLat, double qMinLng, double qMaxLng) {
+            return minLat <= qMaxLat && maxLat >= qMinLat && minLng <= qMaxLng && maxLng >= qMinLng;
+        }
+
+        double centerLat() {
+            return (minLat + maxLat) / 2;
+        }
+
+        double centerLng() {
+            return (minLng + maxLng) / 2;
+        }
+
+        static Node pack(Collection<MarkerPin> pins) {
+            if (pins.isEmpty()) return null;
+            List<Node> level = new ArrayList<>();
+            for (List<MarkerPin> group : strGroups(new ArrayList<>(pins), MarkerPin::getLat, MarkerPin::getLng)) {
+                Node leaf = new Node();
+                leaf.items = group.toArray(new MarkerPin[0]);
+                for (MarkerPin m : group) {
+                    leaf.expand(m.getLat(), m.getLat(), m.getLng(), m.getLng());
+                }
+                level.add(leaf);
+            }
+            while (level.size() > 1) {
+                List<Node> parents = new ArrayList<>();
+                for (List<Node> group : strGroups(level, Node::centerLat, Node::centerLng)) {
+                    Node parent = new Node();
+                    parent.children = group.toArray(new Node[0]);
+                    for (Node child : group) {
+                        parent.expand(child.minLat, child.maxLat, child.minLng, child.maxLng);
+                    }
+                    parents.add(parent);
+                }
+                level = parents;
+            }
+            return level.get(0);
+        }
+
+        // Sort-Tile-Recursive: slice by lng, then chunk each slice by lat into NODE_CAPACITY groups.
+        private static <T> List<List<T>> strGroups(
+                List<T> items,
+                ToDoubleFunction<T> lat,
+                ToDoubleFunction<T> lng
+        ) {
+            int nodeCount = (items.size() + NODE_CAPACITY - 1) / NODE_CAPACITY;
+            int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+            int sliceSize = sliceCount * NODE_CAPACITY;
+            items.sort(Comparator.comparingDouble(lng));
+            List<List<T>> groups = new ArrayList<>(nodeCount);
+            for (int s = 0; s < items.size(); s += sliceSize) {
+                List<T> slice = new ArrayList<>(items.subList(s, Math.min(items.size(), s + sliceSize)));
+                slice.sort(Comparator.comparingDouble(lat));
+                for (int i = 0; i < slice.size(); i += NODE_CAPACITY) {
+                    groups.add(slice.subList(i, Math.min(slice.size(), i + NODE_CAPACITY)));
+                }
+            }
+            return groups;
+        }
+
+        private void expand(double oMinLat, double oMaxLat, double oMinLng, double oMaxLng) {
+            minLat = Math.min(minLat, oMinLat);
+            maxLat = Math.max(maxLat, oMaxLat);
+            minLng = Math.min(minLng, oMinLng);
+            maxLng = Math.max(maxLng, oMaxLng);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.lycoris.service;
+
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiled weekly opening hours: sorted, non-overlapping [start, end) intervals in minutes of
+ * the week (Monday 00:00 = 0) in the marker's own zone. Stored as the flat integer array of their
+ * bounds, {540,720,780,1080}: a minute is open when an odd number of bounds are at or before it,
+ * which SQL evaluates with width_bucket (see the marker_open_at function).
+ *
+ * <p>Spec format accepted from clients: {@code 1-5=09:00-12:00,13:00-18:00;6=10:00-14:00}
+ * (ISO weekdays, 1 = Monday). A window whose end is not after its start runs past midnight.
+ */
+public final class OpenSchedule {
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    public static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    private static final int MAX_SPEC_LENGTH = 512;
+
+    private final int[] bounds; // start0, end0, start1, end1, ...
+    private final ZoneId zone;
+
+    private OpenSchedule(int[] bounds, ZoneId zone) {
+        this.bounds = bounds;
+        this.zone = zone;
+    }
+
+    /** Same window every day (legacy openTimeStart/openTimeEnd). */
+    public static OpenSchedule daily(int startMinute, int endMinute, ZoneId zone) {
+        List<int[]> intervals = new ArrayList<>();
+        for (int day = 0; day < 7; day++) {
+            addWindow(intervals, day, startMinute, endMinute);
+        }
+        return new OpenSchedule(merge(intervals), zone);
+    }
+
+    public static OpenSchedule weekly(String spec, ZoneId zone) {
+        List<int[]> intervals = new ArrayList<>();
+        for (String group : normalizeSpec(spec).split(";")) {
+            String[] parts = group.split("=");
+            String[] days = parts[0].split("-");
+            int firstDay = parseDay(days[0]);
+            int lastDay = days.length == 2 ? parseDay(days[1]) : firstDay;
+            for (String window : parts[1].split(",")) {
+                String[] times = window.split("-");
+                int start = parseMinute(times[0]);
+                int end = parseMinute(times[1]);
+                for (int day = firstDay; day <= lastDay; day++) {
+                    addWindow(intervals, day - 1, start, end);
+                }
+            }
+        }
+        return new OpenSchedule(merge(intervals), zone);
+    }
+
+    /** Inverse of {@link #bounds()}; {@code zoneId} null means the server's default zone. */
+    public static OpenSchedule decode(int[] bounds, String zoneId) {
+        return new OpenSchedule(bounds.clone(), parseZone(zoneId));
+    }
+
+    /**
+     * Validates a weekly spec and strips whitespace; returns null for blank input.
+     */
+    public static String normalizeSpec(String spec) {
+        if (spec == null) return null;
+        String compact = spec.replaceAll("\\s+", "");
+        if (compact.isEmpty()) return null;
+        if (compact.length() > MAX_SPEC_LENGTH) {
+            throw new IllegalArgumentException("营业时间过长");
+        }
+        if (!compact.matches("([1-7](-[1-7])?=\\d{2}:\\d{2}-\\d{2}:\\d{2}(,\\d{2}:\\d{2}-\\d{2}:\\d{2})*)"
+                + "(;[1-7](-[1-7])?=\\d{2}:\\d{2}-\\d{2}:\\d{2}(,\\d{2}:\\d{2}-\\d{2}:\\d{2})*)*")) {
+            throw new IllegalArgumentException("营业时间格式不合法，示例：1-5=09:00-18:00;6=10:00-14:00");
+        }
+        for (String group : compact.split(";")) {
+            String[] days = group.split("=")[0].split("-");
+            if (days.length == 2 && parseDay(days[0]) > parseDay(days[1])) {
+                throw new IllegalArgumentException("营业时间星期范围不合法：" + group);
+            }
+            for (String window : group.split("=")[1].split(",")) {
+                for (String time : window.split("-")) {
+                    parseMinute(time);
+                }
+            }
+        }
+        return compact;
+    }
+
+    /** IANA zone id, or null for the server's default zone. */
+    public static ZoneId parseZone(String zoneId) {
+        if (zoneId == null || zoneId.isBlank()) return ZoneId.systemDefault();
+        try {
+            return ZoneId.of(zoneId.trim());
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("时区不合法：" + zoneId);
+        }
+    }
+
+    public static int minuteOfWeek(ZonedDateTime time) {
+        return (time.getDayOfWeek().getValue() - 1) * MINUTES_PER_DAY + time.getHour() * 60 + time.getMinute();
+    }
+
+    public ZoneId zone() {
+        return zone;
+    }
+
+    public boolean isOpenAt(int minuteOfWeek) {
+        // Binary search over interval starts; no allocation.
+        int lo = 0;
+        int hi = bounds.length / 2 - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (bounds[2 * mid] <= minuteOfWeek) {
+                if (minuteOfWeek < bounds[2 * mid + 1]) return true;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The first bound after the minute of the week, in minutes from the start of that week (past
+     * {@link #MINUTES_PER_WEEK} when it falls in the next one), or -1 if the schedule has none.
+     */
+    public int nextBoundAfter(int minuteOfWeek) {
+        if (bounds.length == 0) return -1;
+        for (int bound : bounds) {
+            if (bound > minuteOfWeek) return bound;
+        }
+        return bounds[0] + MINUTES_PER_WEEK;
+    }
+
+    /**
+     * The instant {@code minutes} past the start of the week (Monday 00:00 in {@code zone}) that
+     * contains {@code time}. Counted on the local clock, so DST shifts land where the hours say.
+     */
+    public static Instant atMinuteOfWeek(Instant time, ZoneId zone, int minutes) {
+        LocalDateTime weekStart = time.atZone(zone).toLocalDate()
+                .with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY))
+                .atStartOfDay();
+        return weekStart.plusMinutes(minutes).atZone(zone).toInstant();
+    }
+
+    /** start0, end0, start1, end1, ... as stored in map_markers.open_week_bounds. */
+    public int[] bounds() {
+        return bounds.clone();
+    }
+
+    private static void addWindow(List<int[]> intervals, int dayIndex, int start, int end) {
+        int from = dayIndex * MINUTES_PER_DAY + start;
+        int length = end > start ? end - start : MINUTES_PER_DAY - start + end;
+        int to = from + length;
+        if (to <= MINUTES_PER_WEEK) {
+            intervals.add(new int[] { from, to });
+        } else {
+            // Sunday night into Monday morning wraps to the start of the week.
+            intervals.add(new int[] { from, MINUTES_PER_WEEK });
+            intervals.add(new int[] { 0, to - MINUTES_PER_WEEK });
+        }
+    }
+
+    private static int[] merge(List<int[]> intervals) {
+        intervals.sort((a, b) -> Integer.compare(a[0], b[0]));
+        int[] out = new int[intervals.size() * 2];
+        int n = 0;
+        for (int[] interval : intervals) {
+            if (n > 0 && interval[0] <= out[n - 1]) {
+                out[n - 1] = Math.max(out[n - 1], interval[1]);
+            } else {
+                out[n++] = interval[0];
+                out[n++] = interval[1];
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int parseDay(String day) {
+        return Integer.parseInt(day);
+    }
+
+    private static int parseMinute(String hhmm) {
+        int hour = Integer.parseInt(hhmm.substring(0, 2));
+        int minute = Integer.parseInt(hhmm.substring(3, 5));
+        if (minute > 59 || hour > 24 || (hour == 24 && minute != 0)) {
+            throw new IllegalArgumentException("营业时间不合法：" + hhmm);
+        }
+        return hour * 60 + minute;
+    }
+}
@@ -0,0 +1,139 @@
+package com.lycoris.service;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets in Redis. Refill, take and expiry happen in one Lua script using Redis' own
+ * clock, so a check is a single round trip, is atomic across instances, and can never leave a
+ * key without a TTL. Buckets are hashes under {@code rl:tb:<policy>:<client>}. Without Redis the
+ * same policies run on {@link LocalRateLimiter}, per instance.
+ */
+@Service
+public class RateLimiter {
+
+    private static final String KEY_PREFIX = "rl:tb:";
+    // While Redis is down every call fails over; report that once per interval, not per request.
+    private static final long FAILURE_LOG_INTERVAL_MILLIS = 60_000;
+
+    // KEYS[1] bucket; ARGV[1] capacity, ARGV[2] refill tokens per millisecond.
+    // Returns 0 when allowed, else the milliseconds until a token is available (at least 1).
+    private static final RedisScript<Long> TOKEN_BUCKET = new DefaultRedisScript<>("""
+            local capacity = tonumber(ARGV[1])
+            local rate = tonumber(ARGV[2])
+            local time = redis.call('TIME')
+            local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+            local state = redis.call('HMGET', KEYS[1], 'tokens', 'ts')
+            local tokens = tonumber(state[1]) or capacity
+            local ts = tonumber(state[2]) or now
+            tokens = math.min(capacity, tokens + math.max(0, now - ts) * rate)
+            local wait = 0
+            if tokens >= 1 then
+                tokens = tokens - 1
+            else
+                wait = math.max(1, math.ceil((1 - tokens) / rate))
+            end
+            redis.call('HSET', KEYS[1], 'tokens', tostring(tokens), 'ts', tostring(now))
+            redis.call('PEXPIRE', KEYS[1], math.ceil((capacity - tokens) / rate) + 1000)
+            return wait
+            """, Long.class);
+
+    private final Environment environment;
+    private final boolean enabled;
+    private final boolean redisEnabled;
+    private final StringRedisTemplate redisTemplate;
+    private final LocalRateLimiter localRateLimiter;
+    private final Map<String, Policy> policies = new ConcurrentHashMap<>();
+    private final AtomicLong lastFailureLoggedAt = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong unloggedFailures = new AtomicLong();
+
+    public RateLimiter(
+            ObjectProvider<StringRedisTemplate> redisTemplateProvider,
+            LocalRateLimiter localRateLimiter,
+            Environment environment,
+            @Value("${security.rate-limit.enabled:true}") boolean enabled,
+            @Value("${security.rate-limit.redis-enabled:true}") boolean redisEnabled
+    ) {
+        this.redisTemplate = redisTemplateProvider.getIfAvailable();
+        this.localRateLimiter = localRateLimiter;
+        this.environment = environment;
+        this.enabled = enabled;
+        this.redisEnabled = redisEnabled;
+    }
+
+    public record Policy(String name, int capacity, double refillPerMinute) {
+        double refillPerMillis() {
+            return refillPerMinute / 60_000.0;
+        }
+    }
+
+    /** Allowed, or denied with how long to wait; {@code retryAfterMillis} is 0 when allowed. */
+    public record Decision(boolean allowed, long retryAfterMillis) {
+        static final Decision ALLOW = new Decision(true, 0);
+    }
+
+    /** Switch for {@link com.lycoris.security.RateLimited} endpoints. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** The named policy with config overrides applied over the given defaults. */
+    public Policy policy(String name, int defaultCapacity, double defaultRefillPerMinute) {
+        return policies.computeIfAbsent(name, n -> new Policy(
+                n,
+                Math.max(1, environment.getProperty(
+                        "security.rate-limit.policies." + n + ".capacity", Integer.class, defaultCapacity)),
+                Math.max(0.001, environment.getProperty(
+                        "security.rate-limit.policies." + n + ".refill-per-minute", Double.class, defaultRefillPerMinute))
+        ));
+    }
+
+    /** Local bucket only, for callers that opted out of Redis. */
+    public Decision tryAcquireLocal(Policy policy, String client) {
+        return localRateLimiter.tryAcquire(policy, (client == null || client.isBlank()) ? "unknown" : client.trim());
+    }
+
+    /** Takes one token from the client's bucket, in Redis when it can answer, else locally. */
+    public Decision tryAcquire(Policy policy, String client) {
+        String normalized = (client == null || client.isBlank()) ? "unknown" : client.trim();
+        if (!redisEnabled || redisTemplate == null) return localRateLimiter.tryAcquire(policy, normalized);
+        String key = KEY_PREFIX + policy.name() + ":" + normalized;
+        try {
+            Long wait = redisTemplate.execute(
+                    TOKEN_BUCKET,
+                    List.of(key),
+                    String.valueOf(policy.capacity()),
+                    String.valueOf(policy.refillPerMillis())
+            );
+            if (wait == null) return localRateLimiter.tryAcquire(policy, normalized);
+            return wait == 0 ? Decision.ALLOW : new Decision(false, wait);
+        } catch (Exception e) {
+            logFailure(policy, e);
+            return localRateLimiter.tryAcquire(policy, normalized);
+        }
+    }
+
+    // The first failure is printed right away, later ones at most once per interval with a count.
+    private void logFailure(Policy policy, Exception e) {
+        long now = System.currentTimeMillis();
+        long last = lastFailureLoggedAt.get();
+        if ((last != Long.MIN_VALUE && now - last < FAILURE_LOG_INTERVAL_MILLIS)
+                || !lastFailureLoggedAt.compareAndSet(last, now)) {
+            unloggedFailures.incrementAndGet();
+            return;
+        }
+        long skipped = unloggedFailures.getAndSet(0);
+        System.out.println("RATE_LIMIT_REDIS_FAILED " + policy.name() + " " + e.getMessage()
+                + (skipped > 0 ? " (" + skipped + " more since last report)" : ""));
+    }
+}
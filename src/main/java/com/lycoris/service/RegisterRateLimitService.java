@@ -2,68 +2,28 @@ package com.lycoris.service;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.beans.factory.ObjectProvider;
-
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
 
 @Service
 public class RegisterRateLimitService {
-    private final int maxAttempts;
-    private final long windowMillis;
-    private final long windowSeconds;
     private final boolean redisEnabled;
-    private final StringRedisTemplate redisTemplate;
-    private final Map<String, Deque<Long>> attemptsByIp = new ConcurrentHashMap<>();
+    private final RateLimiter rateLimiter;
+    private final RateLimiter.Policy policy;
 
     public RegisterRateLimitService(
-            ObjectProvider<StringRedisTemplate> redisTemplateProvider,
+            RateLimiter rateLimiter,
             @Value("${security.register-rate-limit.redis-enabled:true}") boolean redisEnabled,
             @Value("${security.register-rate-limit.max-attempts:5}") int maxAttempts,
             @Value("${security.register-rate-limit.window-seconds:600}") long windowSeconds
     ) {
-        this.redisTemplate = redisTemplateProvider.getIfAvailable();
+        this.rateLimiter = rateLimiter;
         this.redisEnabled = redisEnabled;
-        this.maxAttempts = Math.max(1, maxAttempts);
-        this.windowSeconds = Math.max(1, windowSeconds);
-        this.windowMillis = Math.max(1, windowSeconds) * 1000L;
+        int attempts = Math.max(1, maxAttempts);
+        // maxAttempts per window becomes a bucket of maxAttempts refilled over the same window.
+        this.policy = rateLimiter.policy("register", attempts, attempts * 60.0 / Math.max(1, windowSeconds));
     }
 
     public boolean tryAcquire(String ip) {
-        String key = (ip == null || ip.isBlank()) ? "unknown" : ip.trim();
-        if (redisEnabled && redisTemplate != null) {
-            try {
-                String redisKey = "rl:register:" + key;
-                Long count = redisTemplate.opsForValue().increment(redisKey);
-                if (count == null) return false;
-                if (count == 1L) {
-                    redisTemplate.expire(redisKey, windowSeconds, TimeUnit.SECONDS);
-                }
-                return count <= maxAttempts;
-            } catch (Exception ignore) {
-                // Fallback to local-memory limiter when Redis is unavailable.
-            }
-        }
-        long now = System.currentTimeMillis();
-        Deque<Long> deque = attemptsByIp.computeIfAbsent(key, k -> new ArrayDeque<>());
-        synchronized (deque) {
-            prune(deque, now);
-            if (deque.size() >= maxAttempts) {
-                return false;
-            }
-            deque.addLast(now);
-            return true;
-        }
-    }
-
-    private void prune(Deque<Long> deque, long now) {
-        long threshold = now - windowMillis;
-        while (!deque.isEmpty() && deque.peekFirst() < threshold) {
-            deque.pollFirst();
-        }
+        // Falls back to the bounded local limiter when Redis is unavailable.
+        return (redisEnabled ? rateLimiter.tryAcquire(policy, ip) : rateLimiter.tryAcquireLocal(policy, ip)).allowed();
     }
 }
@@ -1,13 +1,18 @@
 package com.lycoris.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.lycoris.entity.User;
 import com.lycoris.repository.UserRepository;
+import com.lycoris.security.AuthTokenService;
+import com.lycoris.security.CurrentUser;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Locale;
 import java.util.Optional;
@@ -16,11 +21,26 @@ import java.util.Optional;
 public class UserService {
 
     private final UserRepository userRepository;
-    private final PasswordEncoder passwordEncoder;
+    private final PasswordHasher passwordHasher;
+    private final AuthTokenService authTokenService;
+    // userId -> principal; evicted on every write below. Other instances only see a change once
+    // their entry expires, so the TTL bounds how long e.g. a deleted account stays usable there.
+    private final Cache<Integer, CurrentUser> principals;
 
-    public UserService(UserRepository userRepository,  PasswordEncoder passwordEncoder) {
+    public UserService(
+            UserRepository userRepository,
+            PasswordHasher passwordHasher,
+            AuthTokenService authTokenService,
+            @Value("${app.user-cache.max-size:10000}") long principalCacheMaxSize,
+            @Value("${app.user-cache.ttl-seconds:60}") long principalCacheTtlSeconds
+    ) {
         this.userRepository = userRepository;
-        this.passwordEncoder = passwordEncoder;
+        this.passwordHasher = passwordHasher;
+        this.authTokenService = authTokenService;
+        this.principals = Caffeine.newBuilder()
+                .maximumSize(Math.max(0, principalCacheMaxSize))
+                .expireAfterWrite(Duration.ofSeconds(Math.max(1, principalCacheTtlSeconds)))
+                .build();
     }
 
     public User login(String usernameOrEmail, String rawPassword) {
@@ -43,7 +63,7 @@ public class UserService {
         if (!matchesPasswordSafely(rawPassword, user.getPassword())) {
             return null;
         }
-        migrateLegacyPasswordIfNeeded(user, rawPassword);
+        rehashIfNeeded(user, rawPassword);
         return user;
     }
 
@@ -63,7 +83,7 @@ public class UserService {
         user.setUsername(username.trim());
         user.setNickname(nickname == null || nickname.isBlank() ? username.trim() : nickname.trim());
         user.setEmail(email.trim().toLowerCase());
-        user.setPassword(passwordEncoder.encode(rawPassword));
+        user.setPassword(passwordHasher.encode(rawPassword));
         user.setRole("USER");
 
 
@@ -78,8 +98,26 @@ public class UserService {
         return userRepository.findById(id);
     }
 
+    /** Cached id/publicId/role/deleted for the session's user; empty if the row is gone. */
+    public Optional<CurrentUser> principal(Integer id) {
+        if (id == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(principals.get(id, key -> userRepository.findById(key)
+                .map(user -> new CurrentUser(
+                        user.getId(),
+                        String.valueOf(user.getPublicId()),
+                        user.getUsername(),
+                        user.getRole(),
+                        Boolean.TRUE.equals(user.getDeleted())
+                ))
+                .orElse(null)));
+    }
+
     public User save(User user) {
-        return userRepository.save(user);
+        User saved = userRepository.save(user);
+        evictPrincipal(saved);
+        return saved;
     }
 
     public Page<User> searchForAdmin(String q, Pageable pageable) {
@@ -99,6 +137,8 @@ public class UserService {
         user.setDeleted(true);
         user.setDeletedAt(Instant.now());
         userRepository.save(user);
+        evictPrincipal(user);
+        authTokenService.revokeAllFor(user.getId());
         return true;
     }
 
@@ -108,29 +148,42 @@ public class UserService {
         }
         user.setDeleted(false);
         user.setDeletedAt(null);
-        return userRepository.save(user);
+        User saved = userRepository.save(user);
+        evictPrincipal(saved);
+        return saved;
     }
 
     public User resetPassword(User user, String rawPassword) {
-        user.setPassword(passwordEncoder.encode(rawPassword));
-        return userRepository.save(user);
+        user.setPassword(passwordHasher.encode(rawPassword));
+        User saved = userRepository.save(user);
+        evictPrincipal(saved);
+        authTokenService.revokeAllFor(saved.getId());
+        return saved;
     }
 
     public boolean changePassword(User user, String oldPassword, String newPassword) {
         if (user == null) return false;
         if (newPassword == null || newPassword.length() < 4) return false;
         if (!matchesPasswordSafely(oldPassword, user.getPassword())) return false;
-        user.setPassword(passwordEncoder.encode(newPassword));
-        userRepository.save(user);
+        user.setPassword(passwordHasher.encode(newPassword));
+        User saved = userRepository.save(user);
+        evictPrincipal(saved);
+        authTokenService.revokeAllFor(saved.getId());
         return true;
     }
 
+    private void evictPrincipal(User user) {
+        if (user != null && user.getId() != null) {
+            principals.invalidate(user.getId());
+        }
+    }
+
     private boolean matchesPasswordSafely(String rawPassword, String storedPassword) {
         if (rawPassword == null || storedPassword == null || storedPassword.isBlank()) {
             return false;
         }
         try {
-            if (passwordEncoder.matches(rawPassword, storedPassword)) {
+            if (passwordHasher.matches(rawPassword, storedPassword)) {
                 return true;
             }
         } catch (IllegalArgumentException ignored) {
@@ -139,15 +192,16 @@ public class UserService {
         return rawPassword.equals(storedPassword);
     }
 
-    private void migrateLegacyPasswordIfNeeded(User user, String rawPassword) {
+    // Legacy plaintext, or a BCrypt hash made before security.password.bcrypt-strength was raised.
+    private void rehashIfNeeded(User user, String rawPassword) {
         String storedPassword = user.getPassword();
         if (storedPassword == null || storedPassword.isBlank()) {
             return;
         }
-        if (looksLikeBcryptHash(storedPassword)) {
+        if (looksLikeBcryptHash(storedPassword) && !passwordHasher.needsUpgrade(storedPassword)) {
             return;
         }
-        user.setPassword(passwordEncoder.encode(rawPassword));
+        user.setPassword(passwordHasher.encode(rawPassword));
         userRepository.save(user);
     }
 
@@ -0,0 +1,57 @@
+package com.lycoris.controller;
+
+import com.lycoris.dto.LoginRequest;
+import com.lycoris.exception.PasswordHashBusyException;
+import com.lycoris.security.AuthTokenService;
+import com.lycoris.service.LoginAttemptService;
+import com.lycoris.service.RegisterRateLimitService;
+import com.lycoris.service.UserService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AuthControllerTest {
+
+    @Test
+    void busyHashingDoesNotCountAsAFailedLogin() {
+        @SuppressWarnings("unchecked")
+        ObjectProvider<StringRedisTemplate> noRedis = mock(ObjectProvider.class);
+        UserService userService = mock(UserService.class);
+        AuthController controller = new AuthController(
+                userService,
+                mock(RegisterRateLimitService.class),
+                mock(AuthTokenService.class),
+                new LoginAttemptService(noRedis, false, 2, 20, 900)
+        );
+        LoginRequest request = new LoginRequest();
+        request.setUsername("alice");
+        request.setPassword("wrong");
+
+        when(userService.login("alice", "wrong")).thenThrow(new PasswordHashBusyException());
+        for (int i = 0; i < 5; i++) {
+            assertThrows(PasswordHashBusyException.class, () -> login(controller, request));
+        }
+
+        // None of those were counted: both allowed failures are still there.
+        doReturn(null).when(userService).login("alice", "wrong");
+        assertEquals(401, login(controller, request));
+        assertEquals(401, login(controller, request));
+        assertEquals(429, login(controller, request));
+    }
+
+    private static int login(AuthController controller, LoginRequest request) {
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest("POST", "/api/login");
+        httpRequest.setRemoteAddr("203.0.113.7");
+        return controller.login(request, new MockHttpSession(), httpRequest, new MockHttpServletResponse())
+                .getStatusCode().value();
+    }
+}
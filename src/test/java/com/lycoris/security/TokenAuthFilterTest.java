@@ -0,0 +1,92 @@
+package com.lycoris.security;
+
+import jakarta.servlet.http.Cookie;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class TokenAuthFilterTest {
+
+    private static final String COOKIE = "LYCORIS_AUTH";
+
+    @AfterEach
+    void clearContext() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void publicReadWithAValidTokenNeverTouchesRedis() throws Exception {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        AuthTokenService tokens = tokens(redis);
+
+        MockHttpServletRequest request = request(tokens, "GET", "/api/markers/nearby");
+        new TokenAuthFilter(tokens).doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+
+        assertEquals("alice", SecurityContextHolder.getContext().getAuthentication().getName());
+        verifyNoInteractions(redis);
+    }
+
+    @Test
+    void sensitiveRequestsConsultTheDenylist() throws Exception {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        @SuppressWarnings("unchecked")
+        ValueOperations<String, String> values = mock(ValueOperations.class);
+        when(redis.opsForValue()).thenReturn(values);
+        when(values.multiGet(anyList())).thenReturn(Arrays.asList("1", null));
+        AuthTokenService tokens = tokens(redis);
+
+        for (String[] call : List.of(
+                new String[] { "POST", "/api/markers" },
+                new String[] { "GET", "/api/me" },
+                new String[] { "GET", "/api/markers/me/favorites" },
+                new String[] { "GET", "/api/admin/users" }
+        )) {
+            MockHttpServletRequest request = request(tokens, call[0], call[1]);
+            new TokenAuthFilter(tokens).doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+            assertNull(request.getAttribute(AuthTokenService.REQUEST_ATTRIBUTE), call[0] + " " + call[1]);
+            SecurityContextHolder.clearContext();
+        }
+        verify(values, times(4)).multiGet(anyList());
+    }
+
+    private static AuthTokenService tokens(StringRedisTemplate redis) {
+        @SuppressWarnings("unchecked")
+        ObjectProvider<StringRedisTemplate> provider = mock(ObjectProvider.class);
+        when(provider.getIfAvailable()).thenReturn(redis);
+        return new AuthTokenService(
+                provider, true, "0123456789abcdef0123456789abcdef", 3600, COOKIE, true, "none", "", true
+        );
+    }
+
+    private static MockHttpServletRequest request(AuthTokenService tokens, String method, String path) {
+        MockHttpServletResponse login = new MockHttpServletResponse();
+        tokens.issue(login, 7, "p7", "USER", "alice");
+        String header = login.getHeader(HttpHeaders.SET_COOKIE);
+        assertNotNull(header);
+        String value = header.substring(COOKIE.length() + 1, header.indexOf(';'));
+
+        MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+        request.setCookies(new Cookie(COOKIE, value));
+        return request;
+    }
+}
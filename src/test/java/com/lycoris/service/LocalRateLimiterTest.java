@@ -0,0 +1,79 @@
+package com.lycoris.service;
+
+import com.lycoris.service.LocalRateLimiter.Bucket;
+import com.lycoris.service.RateLimiter.Decision;
+import com.lycoris.service.RateLimiter.Policy;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LocalRateLimiterTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void allowsBurstThenDeniesWithRetryAfter() {
+        // register: 5 attempts, one more every two minutes
+        Bucket bucket = new Bucket(new Policy("register", 5, 0.5));
+        long now = 1_000 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.take(now).allowed(), "attempt " + i);
+        }
+        assertEquals(new Decision(false, 120_000), bucket.take(now));
+    }
+
+    @Test
+    void nextTokenArrivesExactlyAfterOneEmissionInterval() {
+        Bucket bucket = new Bucket(new Policy("uploads", 1, 60));
+        assertTrue(bucket.take(0).allowed());
+        Decision early = bucket.take(SECOND - 1);
+        assertFalse(early.allowed());
+        assertEquals(1, early.retryAfterMillis());
+        assertTrue(bucket.take(SECOND).allowed());
+    }
+
+    @Test
+    void sustainsTheRefillRateAfterTheBurst() {
+        Bucket bucket = new Bucket(new Policy("nearby", 2, 600));
+        int allowed = 0;
+        for (long t = 0; t < SECOND; t += SECOND / 1000) {
+            if (bucket.take(t).allowed()) allowed++;
+        }
+        // 2 up front plus one every 100 ms after the first
+        assertEquals(11, allowed);
+    }
+
+    @Test
+    void idleTimeDoesNotGrowTheBurstPastCapacity() {
+        Bucket bucket = new Bucket(new Policy("search", 3, 60));
+        assertTrue(bucket.take(0).allowed());
+        long later = 3_600 * SECOND;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bucket.take(later).allowed());
+        }
+        assertFalse(bucket.take(later).allowed());
+    }
+
+    @Test
+    void worksWithNegativeNanoTime() {
+        Bucket bucket = new Bucket(new Policy("batch", 1, 60));
+        long now = -5 * SECOND;
+        assertTrue(bucket.take(now).allowed());
+        assertFalse(bucket.take(now).allowed());
+        assertTrue(bucket.take(now + SECOND).allowed());
+    }
+
+    @Test
+    void expiresOnceFullAgain() {
+        Bucket bucket = new Bucket(new Policy("proposals", 10, 10));
+        long now = 42 * SECOND;
+        // fresh: just the take about to happen, not an overflowed Long.MIN_VALUE - now
+        assertEquals(6 * SECOND, bucket.nanosUntilFull(now));
+        bucket.take(now);
+        bucket.take(now);
+        assertEquals(18 * SECOND, bucket.nanosUntilFull(now));
+        assertEquals(6 * SECOND, bucket.nanosUntilFull(now + 100 * SECOND));
+    }
+}
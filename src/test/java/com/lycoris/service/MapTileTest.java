@@ -0,0 +1,80 @@
+package com.lycoris.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MapTileTest {
+
+    @Test
+    void containingAtLowZooms() {
+        assertEquals(new MapTile(0, 0, 0), MapTile.containing(31.23, 121.47, 0));
+        assertEquals(new MapTile(1, 1, 0), MapTile.containing(31.23, 121.47, 1));
+        assertEquals(new MapTile(1, 0, 1), MapTile.containing(-33.87, -70.65, 1));
+    }
+
+    @Test
+    void boundsContainThePoint() {
+        double lat = 31.2304;
+        double lng = 121.4737;
+        for (int z = 0; z <= MapTile.MAX_ZOOM; z++) {
+            MapTile tile = MapTile.containing(lat, lng, z);
+            assertTrue(tile.isValid());
+            assertTrue(tile.minLat() <= lat && lat < tile.maxLat(), "lat at z" + z);
+            assertTrue(tile.minLng() <= lng && lng < tile.maxLng(), "lng at z" + z);
+        }
+    }
+
+    @Test
+    void edgesAndPolesStayInsideTheGrid() {
+        int z = 4;
+        int last = (1 << z) - 1;
+        assertEquals(new MapTile(z, last, 0), MapTile.containing(90, 180, z));
+        assertEquals(new MapTile(z, 0, last), MapTile.containing(-90, -180, z));
+        assertEquals(90.0, new MapTile(z, 0, 0).maxLat());
+        assertEquals(-90.0, new MapTile(z, 0, last).minLat());
+    }
+
+    @Test
+    void neighbouringTilesShareEdges() {
+        MapTile tile = new MapTile(10, 857, 418);
+        MapTile east = new MapTile(10, 858, 418);
+        MapTile south = new MapTile(10, 857, 419);
+        assertEquals(tile.maxLng(), east.minLng(), 1e-12);
+        assertEquals(tile.minLat(), south.maxLat(), 1e-12);
+    }
+
+    @Test
+    void coveringMatchesCount() {
+        double minLat = 31.10, maxLat = 31.35, minLng = 121.30, maxLng = 121.65;
+        for (int z = 8; z <= 14; z++) {
+            List<MapTile> tiles = MapTile.covering(minLat, maxLat, minLng, maxLng, z);
+            assertEquals(MapTile.countCovering(minLat, maxLat, minLng, maxLng, z), tiles.size());
+            assertTrue(tiles.contains(MapTile.containing(minLat, minLng, z)));
+            assertTrue(tiles.contains(MapTile.containing(maxLat, maxLng, z)));
+        }
+    }
+
+    @Test
+    void zoomForStopsBeforeExceedingMaxTiles() {
+        assertEquals(1, MapTile.zoomFor(-85, 85, -180, 180, 16, 4));
+        int z = MapTile.zoomFor(31.10, 31.35, 121.30, 121.65, 16, 16);
+        assertTrue(MapTile.countCovering(31.10, 31.35, 121.30, 121.65, z) <= 16);
+        assertTrue(MapTile.countCovering(31.10, 31.35, 121.30, 121.65, z + 1) > 16);
+        assertEquals(5, MapTile.zoomFor(31.2300, 31.2301, 121.4700, 121.4701, 5, 1));
+    }
+
+    @Test
+    void rejectsOutOfRangeTiles() {
+        assertFalse(new MapTile(-1, 0, 0).isValid());
+        assertFalse(new MapTile(MapTile.MAX_ZOOM + 1, 0, 0).isValid());
+        assertFalse(new MapTile(2, 4, 0).isValid());
+        assertFalse(new MapTile(2, 0, -1).isValid());
+        assertTrue(new MapTile(2, 3, 3).isValid());
+        assertEquals("2/3/1", new MapTile(2, 3, 1).path());
+    }
+}
@@ -0,0 +1,176 @@
+package com.lycoris.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lycoris.dto.MarkerPin;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode/decode cost of one cached marker list: the old path (one JSON string holding every pin)
+ * against the current one (id list plus per-pin bodies through {@link MarkerCacheCodec}).
+ * Encoded sizes are reported per operation as the {@code payloadBytes} counter.
+ *
+ * <p>Sizes follow real tiles: 50 pins for a street-level viewport tile, 500 for a district and
+ * 5000 for a city-wide low-zoom tile, whose id list is over the 1 KiB compression threshold and
+ * so goes through the deflate path. Single pin bodies stay under it, as they do in production.
+ *
+ * <p>Run with {@code mvn test-compile} and then
+ * {@code java -cp target/test-classes:target/classes:<test classpath> com.lycoris.service.MarkerCacheCodecBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarkerCacheCodecBenchmark {
+
+    private static final TypeReference<List<MarkerPin>> PIN_LIST_TYPE = new TypeReference<>() {};
+    private static final int COMPRESS_THRESHOLD_BYTES = 1024;
+    // Same mix as the live table: mostly toilets, a few clinics and warnings, some free-form.
+    private static final String[] CATEGORIES = {
+            "accessible_toilet", "accessible_toilet", "accessible_toilet", "accessible_toilet",
+            "friendly_clinic", "friendly_clinic", "conversion_therapy", "self_definition"
+    };
+    private static final String[] TITLES = {
+            "静安寺地铁站无障碍卫生间", "人民广场东侧公共卫生间", "徐汇区性别友善门诊",
+            "长宁社区健康服务中心", "某心理咨询工作室（已被举报）", "彩虹书店"
+    };
+    private static final String[] OPEN_HOURS = {
+            null, "1-7=00:00-24:00", "1-5=09:00-12:00,13:30-17:30;6=09:00-12:00", "1-5=08:30-21:00;6-7=10:00-18:00"
+    };
+
+    @Param({ "json", "smile" })
+    public String format;
+
+    @Param({ "50", "500", "5000" })
+    public int size;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private MarkerCacheCodec codec;
+    private List<MarkerPin> pins;
+    private List<Long> ids;
+    private byte[] legacyJson;
+    private byte[] encodedIds;
+    private List<byte[]> encodedPins;
+
+    @Setup
+    public void setUp() throws IOException {
+        codec = new MarkerCacheCodec(objectMapper, format, COMPRESS_THRESHOLD_BYTES);
+        Random random = new Random(42);
+        pins = new ArrayList<>(size);
+        long id = 10_000;
+        for (int i = 0; i < size; i++) {
+            id += 1 + random.nextInt(40);
+            String openHours = OPEN_HOURS[random.nextInt(OPEN_HOURS.length)];
+            MarkerPin pin = new MarkerPin(
+                    id,
+                    31.2 + random.nextDouble() * 0.2,
+                    121.4 + random.nextDouble() * 0.2,
+                    CATEGORIES[random.nextInt(CATEGORIES.length)],
+                    TITLES[random.nextInt(TITLES.length)],
+                    true,
+                    random.nextInt(4) == 0 ? "/uploads/markers/" + new UUID(random.nextLong(), random.nextLong()) + ".jpg" : null,
+                    null,
+                    null,
+                    openHours,
+                    openHours == null ? null : "Asia/Shanghai",
+                    openHours == null ? null : OpenSchedule.weekly(openHours, ZoneId.of("Asia/Shanghai")).bounds()
+            );
+            pins.add(pin);
+        }
+        ids = pins.stream().map(MarkerPin::getId).toList();
+        legacyJson = objectMapper.writeValueAsBytes(pins);
+        encodedIds = codec.idLists().encode(ids);
+        encodedPins = new ArrayList<>(pins.size());
+        for (MarkerPin pin : pins) {
+            encodedPins.add(codec.pins().encode(pin));
+        }
+    }
+
+    /** Bytes written per operation; set rather than summed, so it reads as a size, not a total. */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Sizes {
+        public long payloadBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            payloadBytes = 0;
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy(Sizes sizes) throws IOException {
+        byte[] out = objectMapper.writeValueAsBytes(pins);
+        sizes.payloadBytes = out.length;
+        return out;
+    }
+
+    @Benchmark
+    public List<MarkerPin> decodeLegacy() throws IOException {
+        return objectMapper.readValue(legacyJson, PIN_LIST_TYPE);
+    }
+
+    @Benchmark
+    public byte[] encodeIdList(Sizes sizes) throws IOException {
+        byte[] out = codec.idLists().encode(ids);
+        sizes.payloadBytes = out.length;
+        return out;
+    }
+
+    @Benchmark
+    public List<Long> decodeIdList() throws IOException {
+        return codec.idLists().decode(encodedIds);
+    }
+
+    // Cold hydration: every body comes from the hash rather than L1.
+    @Benchmark
+    public List<byte[]> encodePins(Sizes sizes) throws IOException {
+        List<byte[]> out = new ArrayList<>(pins.size());
+        long bytes = 0;
+        for (MarkerPin pin : pins) {
+            byte[] body = codec.pins().encode(pin);
+            bytes += body.length;
+            out.add(body);
+        }
+        sizes.payloadBytes = bytes;
+        return out;
+    }
+
+    @Benchmark
+    public List<MarkerPin> decodePins() throws IOException {
+        List<MarkerPin> out = new ArrayList<>(encodedPins.size());
+        for (byte[] body : encodedPins) {
+            out.add(codec.pins().decode(body));
+        }
+        return out;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MarkerCacheCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
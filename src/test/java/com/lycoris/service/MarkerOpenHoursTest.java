@@ -0,0 +1,111 @@
+package com.lycoris.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lycoris.dto.MarkerChanges;
+import com.lycoris.dto.MarkerPin;
+import com.lycoris.entity.MapMarker;
+import com.lycoris.repository.MapMarkerRepository;
+import com.lycoris.repository.MarkerDeletionRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class MarkerOpenHoursTest {
+
+    @Test
+    void lateTransitionStillShowsUpInChanges() throws Exception {
+        MapMarker row = new MapMarker();
+        row.setId(1L);
+        row.setLat(30.0);
+        row.setLng(120.0);
+        row.setCategory("accessible_toilet");
+        row.setIsActive(false);
+        row.setOpenWeekBounds(new int[] { 0, OpenSchedule.MINUTES_PER_WEEK });
+        row.setUpdatedAt(Instant.now().minus(1, ChronoUnit.HOURS));
+        List<Instant> evaluatedAt = new ArrayList<>();
+
+        MapMarkerRepository repo = (MapMarkerRepository) Proxy.newProxyInstance(
+                MapMarkerRepository.class.getClassLoader(),
+                new Class<?>[] { MapMarkerRepository.class },
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "findPublicApprovedPins" -> List.of(MarkerPin.from(row));
+                    // Stands in for the UPDATE: hours at the given instant, updated_at = clock_timestamp().
+                    case "syncOpenNow" -> {
+                        Instant at = (Instant) args[0];
+                        evaluatedAt.add(at);
+                        OpenSchedule schedule = OpenSchedule.decode(row.getOpenWeekBounds(), (String) args[1]);
+                        boolean open = schedule.isOpenAt(OpenSchedule.minuteOfWeek(at.atZone(schedule.zone())));
+                        if (open == row.getIsActive()) yield 0;
+                        row.setIsActive(open);
+                        row.setUpdatedAt(Instant.now());
+                        yield 1;
+                    }
+                    case "findChangedSince" -> {
+                        Instant since = (Instant) args[0];
+                        long sinceId = (Long) args[1];
+                        Instant upTo = (Instant) args[2];
+                        Instant updatedAt = row.getUpdatedAt();
+                        boolean after = updatedAt.isAfter(since) || (updatedAt.equals(since) && row.getId() > sinceId);
+                        yield after && !updatedAt.isAfter(upTo) ? List.of(row) : List.of();
+                    }
+                    default -> throw new UnsupportedOperationException(method.getName());
+                }
+        );
+        MarkerDeletionRepository deletionRepo = (MarkerDeletionRepository) Proxy.newProxyInstance(
+                MarkerDeletionRepository.class.getClassLoader(),
+                new Class<?>[] { MarkerDeletionRepository.class },
+                (proxy, method, args) -> List.of()
+        );
+        // Nothing runs on its own; the test drives the transition.
+        TaskScheduler scheduler = (TaskScheduler) Proxy.newProxyInstance(
+                TaskScheduler.class.getClassLoader(),
+                new Class<?>[] { TaskScheduler.class },
+                (proxy, method, args) -> null
+        );
+        @SuppressWarnings("unchecked")
+        ObjectProvider<StringRedisTemplate> noRedis = mock(ObjectProvider.class);
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        MarkerSpatialIndex index = new MarkerSpatialIndex(repo, deletionRepo, 12);
+        MarkerRegionVersions regionVersions = new MarkerRegionVersions(noRedis, false);
+        MarkerCache cache = new MarkerCache(
+                noRedis, new MarkerCacheCodec(objectMapper, "json", 1024), regionVersions, scheduler,
+                false, 60, 60, 60, 0, 1 << 20, 60, 1.0, 0
+        );
+        MarkerOpenHours openHours = new MarkerOpenHours(
+                repo, index, new MarkerDatasetVersion(noRedis, false), regionVersions, cache, scheduler, noRedis, false, 900
+        );
+        MapMarkerService service = new MapMarkerService(
+                repo, deletionRepo, index, new MarkerDatasetVersion(noRedis, false), regionVersions, openHours, cache,
+                new MarkerChangeEvents(noRedis, repo, index, cache, false), objectMapper, null
+        );
+
+        // A client syncs after the transition minute began but before the transition ran.
+        Instant due = Instant.now().truncatedTo(ChronoUnit.MINUTES);
+        String cursor = service.changesSince(null, 100).cursor();
+
+        openHours.transition(due);
+        // Hours are still evaluated on the minute, not at the instant the run got to them.
+        assertEquals(1, evaluatedAt.size());
+        assertEquals(evaluatedAt.get(0).truncatedTo(ChronoUnit.MINUTES), evaluatedAt.get(0));
+        assertTrue(!evaluatedAt.get(0).isBefore(due));
+        assertTrue(row.getIsActive());
+
+        // Changes become visible once they are older than the safety lag.
+        Thread.sleep(2_100);
+        MarkerChanges changes = service.changesSince(cursor, 100);
+        assertEquals(List.of(1L), changes.upserted().stream().map(MarkerPin::getId).toList());
+        assertEquals(Boolean.TRUE, changes.upserted().get(0).getIsActive());
+    }
+}
@@ -0,0 +1,62 @@
+package com.lycoris.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MarkerSearchTokenizerTest {
+
+    @Test
+    void indexesCjkAsUnigramsAndBigrams() {
+        assertEquals("卫 卫生 生 生间 间", MarkerSearchTokenizer.indexTerms("卫生间"));
+    }
+
+    @Test
+    void singleCjkCharacterIsOneTerm() {
+        assertEquals("厕", MarkerSearchTokenizer.indexTerms("厕"));
+    }
+
+    @Test
+    void splitsRunsAtScriptChangesAndPunctuation() {
+        assertEquals("24h 卫 卫生 生 clinic", MarkerSearchTokenizer.indexTerms("24H卫生，Clinic!"));
+    }
+
+    @Test
+    void normalizesWidthAndCaseBeforeIndexing() {
+        assertEquals("abc 123", MarkerSearchTokenizer.indexTerms("ＡＢＣ　１２３"));
+    }
+
+    @Test
+    void deduplicatesTermsAcrossTexts() {
+        assertEquals("门 门诊 诊 friendly", MarkerSearchTokenizer.indexTerms("门诊", "门诊 Friendly", null));
+    }
+
+    @Test
+    void truncatesLongWords() {
+        String word = "a".repeat(100);
+        assertEquals("a".repeat(64), MarkerSearchTokenizer.indexTerms(word));
+    }
+
+    @Test
+    void queryRequiresEveryCjkBigram() {
+        assertEquals("'无障' & '障碍' & '碍卫'", MarkerSearchTokenizer.toTsQuery("无障碍卫"));
+    }
+
+    @Test
+    void querySingleCjkCharacterMatchesItsUnigram() {
+        assertEquals("'厕'", MarkerSearchTokenizer.toTsQuery("厕"));
+    }
+
+    @Test
+    void queryWordsArePrefixMatches() {
+        assertEquals("'clin':* & '门诊'", MarkerSearchTokenizer.toTsQuery("Clin 门诊"));
+    }
+
+    @Test
+    void queryWithNothingSearchableIsNull() {
+        assertNull(MarkerSearchTokenizer.toTsQuery(null));
+        assertNull(MarkerSearchTokenizer.toTsQuery("   "));
+        assertNull(MarkerSearchTokenizer.toTsQuery("!?，。'&|"));
+    }
+}
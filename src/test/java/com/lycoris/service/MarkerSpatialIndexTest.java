@@ -0,0 +1,101 @@
+package com.lycoris.service;
+
+import com.lycoris.dto.MarkerPin;
+import com.lycoris.entity.MapMarker;
+import com.lycoris.repository.MapMarkerRepository;
+import com.lycoris.repository.MarkerDeletionRepository;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MarkerSpatialIndexTest {
+
+    @Test
+    void writesShowUpBeforeAndAfterRepacking() {
+        List<MarkerPin> loaded = new ArrayList<>();
+        for (long id = 1; id <= 1000; id++) {
+            loaded.add(pin(id, 30 + id * 0.001, 120 + id * 0.001));
+        }
+        MarkerSpatialIndex index = new MarkerSpatialIndex(repo(loaded), deletionRepo(), 12);
+        assertEquals(1000, index.all().size());
+
+        // Moved out of the query box, removed, and added.
+        index.upsert(marker(10, 10, 10));
+        assertEquals("accessible_toilet", index.remove(20L).getCategory());
+        index.upsert(marker(5000, 30.5, 120.5));
+        assertNull(index.remove(99999L));
+
+        Set<Long> expected = idsIn(index);
+        assertTrue(expected.contains(5000L));
+        assertTrue(!expected.contains(10L) && !expected.contains(20L));
+        assertEquals(1, index.query(9, 11, 9, 11, null).size());
+
+        // Enough writes to force a repack; the results must not change.
+        for (long id = 2000; id < 2400; id++) {
+            index.upsert(marker(id, 50, 50));
+        }
+        assertEquals(expected, idsIn(index));
+        assertEquals(400, index.query(49, 51, 49, 51, null).size());
+        assertEquals(1000 - 1 + 1 + 400, index.all().size());
+    }
+
+    @Test
+    void openWindowsFlipCopiesNotTheIndexedPins() {
+        MarkerPin scheduled = pin(1, 30, 120);
+        scheduled.setOpenWeekBounds(new int[] { 0, OpenSchedule.MINUTES_PER_WEEK });
+        MarkerSpatialIndex index = new MarkerSpatialIndex(repo(List.of(scheduled)), deletionRepo(), 12);
+
+        List<MarkerPin> flipped = index.applyOpenWindows(schedule -> false);
+        assertEquals(1, flipped.size());
+        assertEquals(Boolean.FALSE, flipped.get(0).getIsActive());
+        assertEquals(Boolean.TRUE, scheduled.getIsActive());
+        assertEquals(Boolean.FALSE, index.pins(List.of(1L)).get(0).getIsActive());
+        assertTrue(index.applyOpenWindows(schedule -> false).isEmpty());
+    }
+
+    private static Set<Long> idsIn(MarkerSpatialIndex index) {
+        return index.query(30, 32, 120, 122, null).stream().map(MarkerPin::getId).collect(Collectors.toSet());
+    }
+
+    private static MarkerPin pin(long id, double lat, double lng) {
+        return new MarkerPin(id, lat, lng, "accessible_toilet", "t" + id, true, null, null, null, null, null, null);
+    }
+
+    private static MapMarker marker(long id, double lat, double lng) {
+        MapMarker marker = new MapMarker();
+        marker.setId(id);
+        marker.setLat(lat);
+        marker.setLng(lng);
+        marker.setCategory("accessible_toilet");
+        return marker;
+    }
+
+    private static MapMarkerRepository repo(List<MarkerPin> pins) {
+        return (MapMarkerRepository) Proxy.newProxyInstance(
+                MapMarkerRepository.class.getClassLoader(),
+                new Class<?>[] { MapMarkerRepository.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("findPublicApprovedPins")) return pins;
+                    throw new UnsupportedOperationException(method.getName());
+                }
+        );
+    }
+
+    private static MarkerDeletionRepository deletionRepo() {
+        return (MarkerDeletionRepository) Proxy.newProxyInstance(
+                MarkerDeletionRepository.class.getClassLoader(),
+                new Class<?>[] { MarkerDeletionRepository.class },
+                (proxy, method, args) -> {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+        );
+    }
+}
@@ -0,0 +1,62 @@
+package com.lycoris.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.ZoneId;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OpenScheduleTest {
+
+    private static final ZoneId SHANGHAI = ZoneId.of("Asia/Shanghai");
+    private static final ZoneId BERLIN = ZoneId.of("Europe/Berlin");
+
+    @Test
+    void weeklySpecCompilesToBounds() {
+        OpenSchedule schedule = OpenSchedule.weekly("1=09:00-12:00,13:00-18:00", SHANGHAI);
+        assertArrayEquals(new int[] { 540, 720, 780, 1080 }, schedule.bounds());
+        assertTrue(schedule.isOpenAt(540));
+        assertFalse(schedule.isOpenAt(720));
+        assertFalse(schedule.isOpenAt(1080));
+    }
+
+    @Test
+    void sundayNightWrapsToMonday() {
+        OpenSchedule schedule = OpenSchedule.weekly("7=22:00-02:00", SHANGHAI);
+        assertTrue(schedule.isOpenAt(OpenSchedule.MINUTES_PER_WEEK - 1));
+        assertTrue(schedule.isOpenAt(0));
+        assertFalse(schedule.isOpenAt(120));
+    }
+
+    @Test
+    void nextBoundRollsIntoTheNextWeek() {
+        OpenSchedule schedule = OpenSchedule.weekly("1=09:00-18:00", SHANGHAI);
+        assertEquals(540, schedule.nextBoundAfter(0));
+        assertEquals(1080, schedule.nextBoundAfter(540));
+        assertEquals(540 + OpenSchedule.MINUTES_PER_WEEK, schedule.nextBoundAfter(1080));
+        assertEquals(-1, OpenSchedule.decode(new int[0], "UTC").nextBoundAfter(0));
+    }
+
+    @Test
+    void minuteOfWeekIsCountedOnTheLocalClock() {
+        // Wednesday 2026-10-14 12:00 in Shanghai; that week starts Monday 2026-10-12.
+        Instant now = Instant.parse("2026-10-14T04:00:00Z");
+        assertEquals(Instant.parse("2026-10-12T01:00:00Z"), OpenSchedule.atMinuteOfWeek(now, SHANGHAI, 540));
+        assertEquals(
+                Instant.parse("2026-10-19T01:00:00Z"),
+                OpenSchedule.atMinuteOfWeek(now, SHANGHAI, 540 + OpenSchedule.MINUTES_PER_WEEK)
+        );
+    }
+
+    @Test
+    void boundsAfterADstChangeKeepTheirWallClockTime() {
+        // Berlin leaves summer time on Sunday 2026-10-25; Sunday 09:00 is then UTC+1.
+        Instant monday = Instant.parse("2026-10-19T10:00:00Z");
+        int sundayNine = 6 * OpenSchedule.MINUTES_PER_DAY + 540;
+        assertEquals(Instant.parse("2026-10-25T08:00:00Z"), OpenSchedule.atMinuteOfWeek(monday, BERLIN, sundayNine));
+    }
+}